@@ -18,8 +18,10 @@ import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.app.SearchManager;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.Typeface;
 import android.net.Uri;
@@ -33,6 +35,7 @@ import android.support.v7.app.ActionBar;
 import android.support.v7.app.ActionBarActivity;
 import android.support.v7.widget.SearchView;
 import android.support.v7.widget.SearchView.OnQueryTextListener;
+import android.support.v7.widget.SearchView.OnSuggestionListener;
 import android.text.ClipboardManager;
 import android.text.Spannable;
 import android.text.method.LinkMovementMethod;
@@ -74,12 +77,15 @@ import android.widget.TextView.BufferType;
 import android.widget.Toast;
 
 import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
+import com.hughes.android.dictionary.engine.CrossIndexSearch;
 import com.hughes.android.dictionary.engine.Dictionary;
 import com.hughes.android.dictionary.engine.EntrySource;
+import com.hughes.android.dictionary.engine.FederatedSearch;
 import com.hughes.android.dictionary.engine.HtmlEntry;
 import com.hughes.android.dictionary.engine.Index;
 import com.hughes.android.dictionary.engine.Index.IndexEntry;
 import com.hughes.android.dictionary.engine.Language.LanguageResources;
+import com.hughes.android.dictionary.engine.MappedDictionaryFile;
 import com.hughes.android.dictionary.engine.PairEntry;
 import com.hughes.android.dictionary.engine.PairEntry.Pair;
 import com.hughes.android.dictionary.engine.RowBase;
@@ -93,12 +99,13 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
@@ -118,7 +125,7 @@ public class DictionaryActivity extends ActionBarActivity {
     DictionaryApplication application;
 
     File dictFile = null;
-    RandomAccessFile dictRaf = null;
+    MappedDictionaryFile mappedDictFile = null;
 
     Dictionary dictionary = null;
 
@@ -137,8 +144,31 @@ public class DictionaryActivity extends ActionBarActivity {
         }
     });
 
+    // Runs the per-index branches of searches of all indices; shared by all
+    // the activities, since only one searches at a time.
+    private static final Executor crossIndexExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "crossIndexSearch");
+                }
+            });
+
+    // More search results than anyone scrolls through. Once this many rows
+    // filed under all the words are found, rows that only contain a word
+    // inside another one aren't looked at.
+    private static final int MAX_SEARCH_RESULTS = 200;
+
+    // When no token starts with a single word search, the closest tokens are
+    // shown instead of wherever it would have sorted.
+    private static final int MAX_FUZZY_RESULTS = 10;
+    private static final long MAX_FUZZY_MILLIS = 150;
+
     private SearchOperation currentSearchOperation = null;
 
+    // What the last multi-word search found, to refine as the user types.
+    private Index.MultiWordSearchResult lastMultiWordSearch = null;
+
     TextToSpeech textToSpeech;
     volatile boolean ttsReady;
 
@@ -173,6 +203,7 @@ public class DictionaryActivity extends ActionBarActivity {
     private File wordList = null;
     private boolean saveOnlyFirstSubentry = false;
     private boolean clickOpensContextMenu = false;
+    private boolean searchAllIndices = false;
 
     // Visible for testing.
     ListAdapter indexAdapter = null;
@@ -339,17 +370,17 @@ public class DictionaryActivity extends ActionBarActivity {
         try {
             final String name = application.getDictionaryName(dictFile.getName());
             this.setTitle("QuickDic: " + name);
-            dictRaf = new RandomAccessFile(dictFile, "r");
-            dictionary = new Dictionary(dictRaf);
+            mappedDictFile = new MappedDictionaryFile(dictFile);
+            dictionary = new Dictionary(mappedDictFile);
         } catch (Exception e) {
             Log.e(LOG, "Unable to load dictionary.", e);
-            if (dictRaf != null) {
+            if (mappedDictFile != null) {
                 try {
-                    dictRaf.close();
+                    mappedDictFile.close();
                 } catch (IOException e1) {
-                    Log.e(LOG, "Unable to close dictRaf.", e1);
+                    Log.e(LOG, "Unable to close mappedDictFile.", e1);
                 }
-                dictRaf = null;
+                mappedDictFile = null;
             }
             Toast.makeText(this, getString(R.string.invalidDictionary, "", e.getMessage()),
                     Toast.LENGTH_LONG).show();
@@ -363,7 +394,8 @@ public class DictionaryActivity extends ActionBarActivity {
         }
         indexIndex = 0;
         for (int i = 0; i < dictionary.indices.size(); ++i) {
-            if (dictionary.indices.get(i).shortName.equals(targetIndex)) {
+            // Don't open indices just to check their names.
+            if (dictionary.getIndexHeader(i).shortName.equals(targetIndex)) {
                 indexIndex = i;
                 break;
             }
@@ -372,7 +404,9 @@ public class DictionaryActivity extends ActionBarActivity {
         index = dictionary.indices.get(indexIndex);
         setListAdapter(new IndexAdapter(index));
 
-        // Pre-load the collators.
+        // Pre-load the collators, and compile a normalizer that the index keeps
+        // for the first search. Other indices get opened when they're used.
+        final Index indexToPrep = index;
         new Thread(new Runnable() {
             public void run() {
                 final long startMillis = System.currentTimeMillis();
@@ -389,12 +423,10 @@ public class DictionaryActivity extends ActionBarActivity {
                         }
                     });
 
-                    for (final Index index : dictionary.indices) {
-                        final String searchToken = index.sortedIndexEntries.get(0).token;
-                        final IndexEntry entry = index.findExact(searchToken);
-                        if (!searchToken.equals(entry.token)) {
-                            Log.e(LOG, "Couldn't find token: " + searchToken + ", " + entry.token);
-                        }
+                    final String searchToken = indexToPrep.sortedIndexEntries.get(0).token;
+                    final IndexEntry entry = indexToPrep.findExact(searchToken);
+                    if (!searchToken.equals(entry.token)) {
+                        Log.e(LOG, "Couldn't find token: " + searchToken + ", " + entry.token);
                     }
                     indexPrepFinished = true;
                 } catch (Exception e) {
@@ -437,6 +469,7 @@ public class DictionaryActivity extends ActionBarActivity {
                 false);
         clickOpensContextMenu = prefs.getBoolean(getString(R.string.clickOpensContextMenuKey),
                 false);
+        searchAllIndices = prefs.getBoolean(getString(R.string.searchAllIndicesKey), false);
         Log.d(LOG, "wordList=" + wordList + ", saveOnlyFirstSubentry=" + saveOnlyFirstSubentry);
 
         onCreateSetupActionBarAndSearchView();
@@ -534,6 +567,30 @@ public class DictionaryActivity extends ActionBarActivity {
             }
         };
         searchView.setOnQueryTextListener(onQueryTextListener);
+        // Suggestions come from SuggestionsProvider (see res/xml/searchable.xml).
+        final SearchManager searchManager = (SearchManager) getSystemService(
+                Context.SEARCH_SERVICE);
+        searchView.setSearchableInfo(searchManager.getSearchableInfo(getComponentName()));
+        searchView.setOnSuggestionListener(new OnSuggestionListener() {
+            @Override
+            public boolean onSuggestionSelect(int position) {
+                return false;
+            }
+
+            @Override
+            public boolean onSuggestionClick(int position) {
+                // Searches right here rather than sending a SEARCH intent.
+                final Cursor cursor = searchView.getSuggestionsAdapter().getCursor();
+                if (cursor == null || !cursor.moveToPosition(position)) {
+                    return false;
+                }
+                final String query = cursor.getString(cursor
+                        .getColumnIndex(SearchManager.SUGGEST_COLUMN_QUERY));
+                Log.d(LOG, "OnSuggestionListener: onSuggestionClick: " + query);
+                setSearchText(query, true);
+                return true;
+            }
+        });
         searchView.setFocusable(true);
         customSearchView.addView(searchView);
 
@@ -584,27 +641,28 @@ public class DictionaryActivity extends ActionBarActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (dictRaf == null) {
+        if (mappedDictFile == null) {
             return;
         }
 
         final SearchOperation searchOperation = currentSearchOperation;
         currentSearchOperation = null;
 
-        // Before we close the RAF, we have to wind the current search down.
+        // Before we close the file, we have to wind the current search down.
         if (searchOperation != null) {
             Log.d(LOG, "Interrupting search to shut down.");
             currentSearchOperation = null;
             searchOperation.interrupted.set(true);
         }
 
+        dictionary.releaseCaches();
         try {
-            Log.d(LOG, "Closing RAF.");
-            dictRaf.close();
+            Log.d(LOG, "Closing dictionary file.");
+            mappedDictFile.close();
         } catch (IOException e) {
             Log.e(LOG, "Failed to close dictionary", e);
         }
-        dictRaf = null;
+        mappedDictFile = null;
     }
 
     // --------------------------------------------------------------------------
@@ -696,7 +754,10 @@ public class DictionaryActivity extends ActionBarActivity {
         button.setOnClickListener(intentLauncher);
         listView.addHeaderView(button);
 
-        listView.setAdapter(new BaseAdapter() {
+        // Filled in as each dictionary is searched for the current word.
+        final Set<File> knowSearchText = new HashSet<File>();
+
+        final BaseAdapter adapter = new BaseAdapter() {
             @Override
             public View getView(int position, View convertView, ViewGroup parent) {
                 final DictionaryInfo dictionaryInfo = getItem(position);
@@ -724,7 +785,13 @@ public class DictionaryActivity extends ActionBarActivity {
                 final TextView nameView = new TextView(parent.getContext());
                 final String name = application
                         .getDictionaryName(dictionaryInfo.uncompressedFilename);
-                nameView.setText(name);
+                if (knowSearchText.contains(application
+                        .getPath(dictionaryInfo.uncompressedFilename))) {
+                    nameView.setText(getString(R.string.dictionaryKnowsWord, name));
+                    nameView.setTypeface(null, Typeface.BOLD);
+                } else {
+                    nameView.setText(name);
+                }
                 final LinearLayout.LayoutParams layoutParams = new LinearLayout.LayoutParams(
                         ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
                 layoutParams.width = 0;
@@ -749,7 +816,39 @@ public class DictionaryActivity extends ActionBarActivity {
             public int getCount() {
                 return installedDicts.size();
             }
-        });
+        };
+        listView.setAdapter(adapter);
+
+        final String searchText = searchView.getQuery().toString().trim();
+        if (searchText.length() > 0) {
+            final AtomicBoolean interrupted = new AtomicBoolean(false);
+            dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+                @Override
+                public void onDismiss(DialogInterface dialogInterface) {
+                    interrupted.set(true);
+                }
+            });
+            new Thread(new Runnable() {
+                public void run() {
+                    application.searchAllDictionaries(searchText,
+                            new FederatedSearch.Listener() {
+                                @Override
+                                public void onResult(final FederatedSearch.Result result) {
+                                    if (!result.isFound()) {
+                                        return;
+                                    }
+                                    uiHandler.post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            knowSearchText.add(result.file);
+                                            adapter.notifyDataSetChanged();
+                                        }
+                                    });
+                                }
+                            }, interrupted);
+                }
+            }, "searchAllDictionaries").start();
+        }
         dialog.show();
     }
 
@@ -816,6 +915,26 @@ public class DictionaryActivity extends ActionBarActivity {
 
         application.onCreateGlobalOptionsMenu(this, menu);
 
+        if (dictionary != null && dictionary.indices.size() > 1) {
+            final MenuItem searchAllIndicesMenuItem = menu.add(
+                    getString(R.string.searchAllIndices));
+            MenuItemCompat.setShowAsAction(searchAllIndicesMenuItem, MenuItem.SHOW_AS_ACTION_NEVER);
+            searchAllIndicesMenuItem.setCheckable(true);
+            searchAllIndicesMenuItem.setChecked(searchAllIndices);
+            searchAllIndicesMenuItem.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+                public boolean onMenuItemClick(final MenuItem menuItem) {
+                    searchAllIndices = !searchAllIndices;
+                    menuItem.setChecked(searchAllIndices);
+                    PreferenceManager.getDefaultSharedPreferences(DictionaryActivity.this).edit()
+                            .putBoolean(getString(R.string.searchAllIndicesKey), searchAllIndices)
+                            .commit();
+                    lastMultiWordSearch = null;
+                    onSearchTextChange(searchView.getQuery().toString());
+                    return false;
+                }
+            });
+        }
+
         {
             final MenuItem dictionaryManager = menu.add(getString(R.string.dictionaryManager));
             MenuItemCompat.setShowAsAction(dictionaryManager, MenuItem.SHOW_AS_ACTION_NEVER);
@@ -1006,7 +1125,7 @@ public class DictionaryActivity extends ActionBarActivity {
 
     protected void onListItemClick(ListView l, View v, int row, long id) {
         defocusSearchText();
-        if (clickOpensContextMenu && dictRaf != null) {
+        if (clickOpensContextMenu && mappedDictFile != null) {
             openContextMenu(v);
         }
     }
@@ -1017,7 +1136,7 @@ public class DictionaryActivity extends ActionBarActivity {
 
         final StringBuilder rawText = new StringBuilder();
         rawText.append(new SimpleDateFormat("yyyy.MM.dd HH:mm:ss").format(new Date())).append("\t");
-        rawText.append(index.longName).append("\t");
+        rawText.append(row.index.longName).append("\t");
         rawText.append(row.getTokenRow(true).getToken()).append("\t");
         rawText.append(row.getRawText(saveOnlyFirstSubentry));
         Log.d(LOG, "Writing : " + rawText);
@@ -1137,6 +1256,9 @@ public class DictionaryActivity extends ActionBarActivity {
 
         final Index.IndexEntry searchResult = searchOperation.searchResult;
         Log.d(LOG, "searchFinished: " + searchOperation + ", searchResult=" + searchResult);
+        if (searchOperation.multiWordSearch != null) {
+            lastMultiWordSearch = searchOperation.multiWordSearch;
+        }
 
         currentSearchOperation = null;
         uiHandler.postDelayed(new Runnable() {
@@ -1180,17 +1302,29 @@ public class DictionaryActivity extends ActionBarActivity {
 
         final Index index;
 
+        // Search all of its indices at the same time, or null. They are
+        // opened here, off the UI thread, the first time.
+        final Dictionary allIndicesOf;
+
         long searchStartMillis;
 
         Index.IndexEntry searchResult;
 
         List<RowBase> multiWordSearchResult;
 
+        final Index.MultiWordSearchResult previousMultiWordSearch;
+
+        Index.MultiWordSearchResult multiWordSearch;
+
         boolean done = false;
 
-        SearchOperation(final String searchText, final Index index) {
+        SearchOperation(final String searchText, final Index index,
+                final Dictionary allIndicesOf,
+                final Index.MultiWordSearchResult previousMultiWordSearch) {
             this.searchText = StringUtil.normalizeWhitespace(searchText);
             this.index = index;
+            this.allIndicesOf = allIndicesOf;
+            this.previousMultiWordSearch = previousMultiWordSearch;
         }
 
         public String toString() {
@@ -1202,12 +1336,31 @@ public class DictionaryActivity extends ActionBarActivity {
             try {
                 searchStartMillis = System.currentTimeMillis();
                 final String[] searchTokenArray = WHITESPACE.split(searchText);
-                if (searchTokenArray.length == 1) {
+                if (allIndicesOf != null && searchText.length() > 0) {
+                    // Even a single word, since jumping to it only works
+                    // within one index.
+                    searchTokens = Arrays.asList(searchTokenArray);
+                    final List<Index> indices = new ArrayList<Index>();
+                    indices.add(index);
+                    for (final Index other : allIndicesOf.indices) {
+                        if (other != index) {
+                            indices.add(other);
+                        }
+                    }
+                    multiWordSearchResult = CrossIndexSearch.search(indices, searchText,
+                            searchTokens, interrupted, MAX_SEARCH_RESULTS, crossIndexExecutor);
+                } else if (searchTokenArray.length == 1) {
                     searchResult = index.findInsertionPoint(searchText, interrupted);
+                    if (searchResult != null && !interrupted.get()
+                            && !index.hasTokenStartingWith(searchText, interrupted)) {
+                        findFuzzy();
+                    }
                 } else {
                     searchTokens = Arrays.asList(searchTokenArray);
-                    multiWordSearchResult = index.multiWordSearch(searchText, searchTokens,
-                            interrupted);
+                    multiWordSearch = index.multiWordSearch(searchText, searchTokens,
+                            interrupted, MAX_SEARCH_RESULTS, previousMultiWordSearch);
+                    multiWordSearchResult = multiWordSearch != null ? multiWordSearch.rows
+                            : null;
                 }
                 Log.d(LOG,
                         "searchText=" + searchText + ", searchDuration="
@@ -1232,6 +1385,28 @@ public class DictionaryActivity extends ActionBarActivity {
                 }
             }
         }
+
+        /**
+         * Probably a misspelling: if any tokens are close to it, shows their
+         * rows, filtered, instead of jumping to the insertion point.
+         */
+        private void findFuzzy() {
+            final List<Index.IndexEntry> entries = index.findFuzzy(searchText,
+                    Index.fuzzyDistance(searchText), MAX_FUZZY_RESULTS, MAX_FUZZY_MILLIS);
+            if (entries.isEmpty() || interrupted.get()) {
+                return;
+            }
+            searchTokens = new ArrayList<String>();
+            multiWordSearchResult = new ArrayList<RowBase>();
+            for (final Index.IndexEntry entry : entries) {
+                searchTokens.add(entry.token);
+                final int end = Math.min(entry.startRow + 1 + entry.numRows, entry.startRow
+                        + MAX_SEARCH_RESULTS / MAX_FUZZY_RESULTS);
+                multiWordSearchResult.addAll(index.rows.subList(entry.startRow, end));
+            }
+            searchResult = null;
+            Log.d(LOG, "No token starts with " + searchText + ", showing " + searchTokens);
+        }
     }
 
     // --------------------------------------------------------------------------
@@ -1294,6 +1469,10 @@ public class DictionaryActivity extends ActionBarActivity {
 
         @Override
         public long getItemId(int position) {
+            if (rows == index.rows) {
+                // Same thing, without loading the row.
+                return position;
+            }
             return getItem(position).index();
         }
 
@@ -1355,8 +1534,10 @@ public class DictionaryActivity extends ActionBarActivity {
                 // Set what's in the columns.
 
                 final Pair pair = entry.pairs.get(r);
-                final String col1Text = index.swapPairEntries ? pair.lang2 : pair.lang1;
-                final String col2Text = index.swapPairEntries ? pair.lang1 : pair.lang2;
+                // Searches of all indices show rows of other indices, too.
+                final boolean swapPairEntries = row.index.swapPairEntries;
+                final String col1Text = swapPairEntries ? pair.lang2 : pair.lang1;
+                final String col2Text = swapPairEntries ? pair.lang1 : pair.lang2;
 
                 col1.setText(col1Text, TextView.BufferType.SPANNABLE);
                 col2.setText(col2Text, TextView.BufferType.SPANNABLE);
@@ -1383,7 +1564,7 @@ public class DictionaryActivity extends ActionBarActivity {
                 col2.setTextSize(TypedValue.COMPLEX_UNIT_SP, fontSizeSp);
                 // col2.setBackgroundResource(theme.otherLangBg);
 
-                if (index.swapPairEntries) {
+                if (swapPairEntries) {
                     col2.setOnLongClickListener(textViewLongClickListenerIndex0);
                     col1.setOnLongClickListener(textViewLongClickListenerIndex1);
                 } else {
@@ -1488,6 +1669,8 @@ public class DictionaryActivity extends ActionBarActivity {
 
         private TableLayout getView(HtmlEntry.Row row, ViewGroup parent, final TableLayout result) {
             final HtmlEntry htmlEntry = row.getEntry();
+            // Warm it up in case it gets clicked.
+            HtmlEntry.prefetchHtml(Collections.singletonList(htmlEntry));
             final TokenRow tokenRow = row.getTokenRow(true);
             return getPossibleLinkToHtmlEntryView(false,
                     getString(R.string.seeAlso, htmlEntry.title, htmlEntry.entrySource.getName()),
@@ -1569,7 +1752,7 @@ public class DictionaryActivity extends ActionBarActivity {
             });
             dialog.show();
         }
-        if (dictRaf == null) {
+        if (mappedDictFile == null) {
             Log.d(LOG, "searchText changed during shutdown, doing nothing.");
             return;
         }
@@ -1582,7 +1765,10 @@ public class DictionaryActivity extends ActionBarActivity {
             Log.d(LOG, "Interrupting currentSearchOperation.");
             currentSearchOperation.interrupted.set(true);
         }
-        currentSearchOperation = new SearchOperation(text, index);
+        final Dictionary allIndicesOf = searchAllIndices && dictionary.indices.size() > 1
+                ? dictionary : null;
+        currentSearchOperation = new SearchOperation(text, index, allIndicesOf,
+                lastMultiWordSearch);
         searchExecutor.execute(currentSearchOperation);
     }
 
@@ -34,7 +34,9 @@ import android.widget.ImageButton;
 import android.widget.ImageView.ScaleType;
 
 import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
+import com.hughes.android.dictionary.engine.CacheBudget;
 import com.hughes.android.dictionary.engine.Dictionary;
+import com.hughes.android.dictionary.engine.FederatedSearch;
 import com.hughes.android.dictionary.engine.Language;
 import com.hughes.android.dictionary.engine.Language.LanguageResources;
 import com.hughes.android.dictionary.engine.TransliteratorManager;
@@ -54,6 +56,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DictionaryApplication extends Application {
 
@@ -344,6 +353,49 @@ public class DictionaryApplication extends Application {
         });
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        Log.w(LOG, "onLowMemory, dropping " + CacheBudget.global());
+        CacheBudget.global().clear();
+        synchronized (this) {
+            if (federatedSearch != null) {
+                federatedSearch.closeHandles();
+            }
+        }
+    }
+
+    private static final int FEDERATED_SEARCH_THREADS = Math.max(2,
+            Runtime.getRuntime().availableProcessors());
+
+    private static final long FEDERATED_SEARCH_MILLIS_PER_DICTIONARY = 2000;
+
+    private FederatedSearch federatedSearch = null;
+
+    /**
+     * Looks word up in every dictionary on the device at once, in the user's
+     * order: blocks until all of them have answered or timed out, calling
+     * listener (if not null) as each one does.
+     * 
+     * @return null if interrupted.
+     */
+    public List<FederatedSearch.Result> searchAllDictionaries(final String word,
+            final FederatedSearch.Listener listener, final AtomicBoolean interrupted) {
+        final List<File> files = new ArrayList<File>();
+        final FederatedSearch search;
+        synchronized (this) {
+            for (final String uncompressedFilename : dictionaryConfig.dictionaryFilesOrdered) {
+                files.add(getPath(uncompressedFilename));
+            }
+            if (federatedSearch == null) {
+                federatedSearch = new FederatedSearch(FEDERATED_SEARCH_THREADS,
+                        FEDERATED_SEARCH_MILLIS_PER_DICTIONARY);
+            }
+            search = federatedSearch;
+        }
+        return search.search(files, word, listener, interrupted);
+    }
+
     public void onCreateGlobalOptionsMenu(
             final Context context, final Menu menu) {
         final MenuItem about = menu.add(getString(R.string.about));
@@ -553,48 +605,125 @@ public class DictionaryApplication extends Application {
         }
     };
 
+    private static final int RESCAN_THREADS = Math.max(1,
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * @return cached if file still has the size, modification time and
+     *         creationMillis it had when cached was read from it, otherwise
+     *         freshly parsed info (null if file isn't a valid dictionary). A
+     *         replacement copied in with its old timestamp and the same size
+     *         still has a different creationMillis, which costs a 12-byte read
+     *         to check.
+     */
+    static DictionaryInfo getDictionaryInfo(final File file, final DictionaryInfo cached) {
+        if (cached != null && cached.lastModified != 0
+                && cached.lastModified == file.lastModified()
+                && cached.uncompressedBytes == file.length()
+                && cached.creationMillis == Dictionary.getCreationMillis(file)) {
+            return cached;
+        }
+        return Dictionary.getDictionaryInfo(file);
+    }
+
+    private static Future<DictionaryInfo> submitGetDictionaryInfo(final ExecutorService executor,
+            final File file, final DictionaryInfo cached) {
+        return executor.submit(new Callable<DictionaryInfo>() {
+            @Override
+            public DictionaryInfo call() {
+                return getDictionaryInfo(file, cached);
+            }
+        });
+    }
+
+    private static DictionaryInfo getResult(final Future<DictionaryInfo> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(LOG, "Exception reading DictionaryInfo.", e.getCause());
+            return null;
+        }
+    }
+
     public void backgroundUpdateDictionaries(final Runnable onUpdateFinished) {
         new Thread(new Runnable() {
             @Override
             public void run() {
                 final DictionaryConfig oldDictionaryConfig = new DictionaryConfig();
-                synchronized (this) {
+                synchronized (DictionaryApplication.this) {
                     oldDictionaryConfig.dictionaryFilesOrdered
                             .addAll(dictionaryConfig.dictionaryFilesOrdered);
+                    oldDictionaryConfig.uncompressedFilenameToDictionaryInfo
+                            .putAll(dictionaryConfig.uncompressedFilenameToDictionaryInfo);
                 }
                 final DictionaryConfig newDictionaryConfig = new DictionaryConfig();
-                for (final String uncompressedFilename : oldDictionaryConfig.dictionaryFilesOrdered) {
-                    final File dictFile = getPath(uncompressedFilename);
-                    final DictionaryInfo dictionaryInfo = Dictionary.getDictionaryInfo(dictFile);
-                    if (dictionaryInfo != null) {
-                        newDictionaryConfig.dictionaryFilesOrdered.add(uncompressedFilename);
-                        newDictionaryConfig.uncompressedFilenameToDictionaryInfo.put(
-                                uncompressedFilename, dictionaryInfo);
-                    }
-                }
 
-                // Are there dictionaries on the device that we didn't know
-                // about already?
-                // Pick them up and put them at the end of the list.
-                final List<String> toAddSorted = new ArrayList<String>();
-                final File[] dictDirFiles = getDictDir().listFiles();
-                if (dictDirFiles != null) {
-                    for (final File file : dictDirFiles) {
-                        if (file.getName().endsWith(".zip")) {
-                            if (DOWNLOADABLE_UNCOMPRESSED_FILENAME_NAME_TO_DICTIONARY_INFO
-                                    .containsKey(file.getName().replace(".zip", ""))) {
-                                file.delete();
+                // Only changed files actually get parsed, several at a time.
+                final ExecutorService executor = Executors.newFixedThreadPool(RESCAN_THREADS,
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                return new Thread(r, "dictionaryRescan");
                             }
+                        });
+                try {
+                    final List<Future<DictionaryInfo>> knownInfos = new ArrayList<Future<DictionaryInfo>>();
+                    for (final String uncompressedFilename : oldDictionaryConfig.dictionaryFilesOrdered) {
+                        knownInfos.add(submitGetDictionaryInfo(executor,
+                                getPath(uncompressedFilename),
+                                oldDictionaryConfig.uncompressedFilenameToDictionaryInfo
+                                        .get(uncompressedFilename)));
+                    }
+                    for (int i = 0; i < knownInfos.size(); ++i) {
+                        final String uncompressedFilename = oldDictionaryConfig.dictionaryFilesOrdered
+                                .get(i);
+                        final DictionaryInfo dictionaryInfo = getResult(knownInfos.get(i));
+                        if (dictionaryInfo != null) {
+                            newDictionaryConfig.dictionaryFilesOrdered.add(uncompressedFilename);
+                            newDictionaryConfig.uncompressedFilenameToDictionaryInfo.put(
+                                    uncompressedFilename, dictionaryInfo);
                         }
-                        if (!file.getName().endsWith(".quickdic")) {
-                            continue;
-                        }
-                        if (newDictionaryConfig.uncompressedFilenameToDictionaryInfo
-                                .containsKey(file.getName())) {
-                            // We have it in our list already.
-                            continue;
+                    }
+
+                    // Are there dictionaries on the device that we didn't know
+                    // about already?
+                    // Pick them up and put them at the end of the list.
+                    final List<File> newFiles = new ArrayList<File>();
+                    final File[] dictDirFiles = getDictDir().listFiles();
+                    if (dictDirFiles != null) {
+                        for (final File file : dictDirFiles) {
+                            if (file.getName().endsWith(".zip")) {
+                                if (DOWNLOADABLE_UNCOMPRESSED_FILENAME_NAME_TO_DICTIONARY_INFO
+                                        .containsKey(file.getName().replace(".zip", ""))) {
+                                    file.delete();
+                                }
+                            }
+                            if (!file.getName().endsWith(".quickdic")) {
+                                continue;
+                            }
+                            if (newDictionaryConfig.uncompressedFilenameToDictionaryInfo
+                                    .containsKey(file.getName())) {
+                                // We have it in our list already.
+                                continue;
+                            }
+                            newFiles.add(file);
                         }
-                        final DictionaryInfo dictionaryInfo = Dictionary.getDictionaryInfo(file);
+                    } else {
+                        Log.w(LOG, "dictDir is not a diretory: " + getDictDir().getPath());
+                    }
+                    final List<Future<DictionaryInfo>> newInfos = new ArrayList<Future<DictionaryInfo>>();
+                    for (final File file : newFiles) {
+                        newInfos.add(submitGetDictionaryInfo(executor, file,
+                                oldDictionaryConfig.uncompressedFilenameToDictionaryInfo
+                                        .get(file.getName())));
+                    }
+                    final List<String> toAddSorted = new ArrayList<String>();
+                    for (int i = 0; i < newInfos.size(); ++i) {
+                        final File file = newFiles.get(i);
+                        final DictionaryInfo dictionaryInfo = getResult(newInfos.get(i));
                         if (dictionaryInfo == null) {
                             Log.e(LOG, "Unable to parse dictionary: " + file.getPath());
                             continue;
@@ -604,17 +733,17 @@ public class DictionaryApplication extends Application {
                         newDictionaryConfig.uncompressedFilenameToDictionaryInfo.put(
                                 file.getName(), dictionaryInfo);
                     }
-                } else {
-                    Log.w(LOG, "dictDir is not a diretory: " + getDictDir().getPath());
-                }
-                if (!toAddSorted.isEmpty()) {
-                    Collections.sort(toAddSorted, uncompressedFilenameComparator);
-                    newDictionaryConfig.dictionaryFilesOrdered.addAll(toAddSorted);
+                    if (!toAddSorted.isEmpty()) {
+                        Collections.sort(toAddSorted, uncompressedFilenameComparator);
+                        newDictionaryConfig.dictionaryFilesOrdered.addAll(toAddSorted);
+                    }
+                } finally {
+                    executor.shutdown();
                 }
 
                 PersistentObjectCache.getInstance()
                         .write(C.DICTIONARY_CONFIGS, newDictionaryConfig);
-                synchronized (this) {
+                synchronized (DictionaryApplication.this) {
                     dictionaryConfig = newDictionaryConfig;
                 }
 
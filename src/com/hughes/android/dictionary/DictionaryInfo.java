@@ -14,6 +14,9 @@
 
 package com.hughes.android.dictionary;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -49,6 +52,19 @@ public class DictionaryInfo implements Serializable {
             allTokenCount = Integer.parseInt(fields[i++]);
             mainTokenCount = Integer.parseInt(fields[i++]);
         }
+
+        // Binary form, as stored in the dictionary file's summary.
+        public IndexInfo(final DataInput in) throws IOException {
+            shortName = in.readUTF();
+            allTokenCount = in.readInt();
+            mainTokenCount = in.readInt();
+        }
+
+        public void write(final DataOutput out) throws IOException {
+            out.writeUTF(shortName);
+            out.writeInt(allTokenCount);
+            out.writeInt(mainTokenCount);
+        }
     }
 
     // Stuff populated from the text file.
@@ -60,6 +76,11 @@ public class DictionaryInfo implements Serializable {
     public final List<IndexInfo> indexInfos = new ArrayList<DictionaryInfo.IndexInfo>();
     public String dictInfo;
 
+    // When the file this was read from was last modified; together with
+    // uncompressedBytes and creationMillis it fingerprints the file. Not part
+    // of the text format.
+    public long lastModified;
+
     public DictionaryInfo() {
         // Blank object.
     }
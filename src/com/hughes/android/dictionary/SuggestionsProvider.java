@@ -0,0 +1,193 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary;
+
+import android.app.SearchManager;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.hughes.android.dictionary.engine.Dictionary;
+import com.hughes.android.dictionary.engine.Index;
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.dictionary.engine.MappedDictionaryFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Search suggestions (see res/xml/searchable.xml) from the index that a
+ * search intent would open: the default dictionary, or else the last one
+ * used, in the last index used. DictionaryActivity's SearchView shows them.
+ * <p>
+ * Read-only: insert, delete and update change nothing.
+ */
+public class SuggestionsProvider extends ContentProvider {
+
+    static final String LOG = "QuickDicSuggestions";
+
+    private static final String[] COLUMNS = {
+            BaseColumns._ID,
+            SearchManager.SUGGEST_COLUMN_TEXT_1,
+            SearchManager.SUGGEST_COLUMN_QUERY,
+    };
+
+    private static final int DEFAULT_LIMIT = 20;
+
+    // Per keystroke.
+    private static final long MAX_MILLIS = 100;
+
+    private File dictFile = null;
+    private MappedDictionaryFile mappedDictFile = null;
+    private Dictionary dictionary = null;
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        final String prefix = selectionArgs != null && selectionArgs.length > 0 ? selectionArgs[0]
+                : uri.getLastPathSegment();
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        if (prefix == null || prefix.trim().length() == 0
+                || SearchManager.SUGGEST_URI_PATH_QUERY.equals(prefix)) {
+            return cursor;
+        }
+        int limit = DEFAULT_LIMIT;
+        try {
+            final String limitParameter = uri
+                    .getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+            if (limitParameter != null) {
+                limit = Integer.parseInt(limitParameter);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG, "Bad limit: " + uri);
+        }
+
+        final List<IndexEntry> entries = suggest(prefix.trim(), limit);
+        for (int i = 0; i < entries.size(); ++i) {
+            final String token = entries.get(i).token;
+            cursor.addRow(new Object[] {
+                    i, token, token
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Holds the lock until index.suggest returns (at most MAX_MILLIS, twice if
+     * it falls back to findFuzzy), so that a change of dictionary can't close
+     * it mid-search. When no token starts with prefix, it is probably
+     * misspelled, so the tokens a few edits away are suggested instead.
+     */
+    private synchronized List<IndexEntry> suggest(final String prefix, final int limit) {
+        final Index index = getIndex();
+        if (index == null) {
+            return Collections.<IndexEntry> emptyList();
+        }
+        final List<IndexEntry> result = index.suggest(prefix, limit, MAX_MILLIS);
+        if (!result.isEmpty()) {
+            return result;
+        }
+        return index.findFuzzy(prefix, Index.fuzzyDistance(prefix), limit, MAX_MILLIS);
+    }
+
+    // Called with the lock held.
+    private Index getIndex() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        final DictionaryApplication application = (DictionaryApplication) getContext()
+                .getApplicationContext();
+        final String defaultDict = prefs.getString(getContext().getString(R.string.defaultDicKey),
+                null);
+        final String lastDict = prefs.getString(C.DICT_FILE, null);
+        final File file = defaultDict != null ? application.getPath(defaultDict)
+                : lastDict != null ? new File(lastDict) : null;
+        if (file == null) {
+            return null;
+        }
+
+        if (!file.equals(dictFile)) {
+            close();
+            try {
+                mappedDictFile = new MappedDictionaryFile(file);
+                dictionary = new Dictionary(mappedDictFile);
+                dictFile = file;
+            } catch (Exception e) {
+                Log.e(LOG, "Unable to load dictionary: " + file, e);
+                close();
+                return null;
+            }
+        }
+
+        final String indexShortName = prefs.getString(C.INDEX_SHORT_NAME, null);
+        int indexIndex = 0;
+        for (int i = 0; i < dictionary.indices.size(); ++i) {
+            // Don't open indices just to check their names.
+            if (dictionary.getIndexHeader(i).shortName.equals(indexShortName)) {
+                indexIndex = i;
+                break;
+            }
+        }
+        return dictionary.indices.get(indexIndex);
+    }
+
+    private void close() {
+        if (dictionary != null) {
+            dictionary.releaseCaches();
+        }
+        if (mappedDictFile != null) {
+            try {
+                mappedDictFile.close();
+            } catch (IOException e) {
+                Log.e(LOG, "Unable to close mappedDictFile.", e);
+            }
+        }
+        dictFile = null;
+        mappedDictFile = null;
+        dictionary = null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return SearchManager.SUGGEST_MIME_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+}
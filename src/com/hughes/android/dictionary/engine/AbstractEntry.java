@@ -16,6 +16,7 @@ package com.hughes.android.dictionary.engine;
 
 import com.hughes.util.IndexedObject;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
@@ -28,11 +29,11 @@ public abstract class AbstractEntry extends IndexedObject {
         this.entrySource = entrySource;
     }
 
-    public AbstractEntry(Dictionary dictionary, RandomAccessFile raf, final int index)
+    public AbstractEntry(Dictionary dictionary, DataInput in, final int index)
             throws IOException {
         super(index);
         if (dictionary.dictFileVersion >= 1) {
-            final int entrySouceIdx = raf.readShort();
+            final int entrySouceIdx = in.readShort();
             this.entrySource = dictionary.sources.get(entrySouceIdx);
         } else {
             this.entrySource = null;
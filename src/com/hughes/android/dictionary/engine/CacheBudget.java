@@ -0,0 +1,446 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+import com.hughes.android.dictionary.engine.PairEntry.Pair;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte budget, shared by the element caches of every open Dictionary and
+ * Index. Replaces a fixed number of elements per list, which was far too
+ * small for rows and far too big for PairEntries.
+ * <p>
+ * Each list keeps its own LRU under its own lock, so lists read by different
+ * threads never wait for each other; only the byte count is shared. When it
+ * goes over budget, elements are evicted from whichever list has the least
+ * recently used one, which approximates a single LRU over all of them. Lists
+ * are only weakly referenced: call {@link #release} when a Dictionary is
+ * closed to give its bytes back right away rather than when it is collected.
+ */
+public final class CacheBudget {
+
+    interface Sizer<T> {
+        /**
+         * @return a rough estimate of the heap bytes held by t.
+         */
+        int sizeOf(T t);
+    }
+
+    private static final CacheBudget GLOBAL = new CacheBudget(defaultMaxBytes());
+
+    private volatile long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+
+    // Every list not yet released or collected.
+    private final Set<ListRef> listRefs = new LinkedHashSet<ListRef>();
+    private final ReferenceQueue<CachedList<?>> collected = new ReferenceQueue<CachedList<?>>();
+
+    // Of the lists that are gone. Guarded by listRefs.
+    private long retiredHits = 0;
+    private long retiredMisses = 0;
+    private long retiredEvictions = 0;
+
+    // Only one thread evicts at a time; the others just add.
+    private final Object evictLock = new Object();
+
+    CacheBudget(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The budget that all dictionaries opened in this process share.
+     */
+    public static CacheBudget global() {
+        return GLOBAL;
+    }
+
+    private static long defaultMaxBytes() {
+        // An eighth of the heap, within reason.
+        final long eighth = Runtime.getRuntime().maxMemory() / 8;
+        return Math.max(1L << 20, Math.min(eighth, 32L << 20));
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHits() {
+        return stats()[0];
+    }
+
+    public long getMisses() {
+        return stats()[1];
+    }
+
+    public long getEvictions() {
+        return stats()[2];
+    }
+
+    /**
+     * @return hits, misses, evictions and entries, over all lists.
+     */
+    private long[] stats() {
+        final long[] result = new long[4];
+        final List<ListRef> refs = liveRefs();
+        synchronized (listRefs) {
+            result[0] = retiredHits;
+            result[1] = retiredMisses;
+            result[2] = retiredEvictions;
+        }
+        for (final ListRef ref : refs) {
+            final CachedList<?> list = ref.get();
+            if (list != null) {
+                synchronized (list) {
+                    result[0] += ref.hits;
+                    result[1] += ref.misses;
+                    result[2] += ref.evictions;
+                    result[3] += list.lru.size();
+                }
+            } else {
+                // Collected, but not expunged yet.
+                result[0] += ref.hits;
+                result[1] += ref.misses;
+                result[2] += ref.evictions;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops everything, e.g. when the system is low on memory.
+     */
+    public void clear() {
+        for (final ListRef ref : liveRefs()) {
+            final CachedList<?> list = ref.get();
+            if (list != null) {
+                list.evictAll();
+            }
+        }
+    }
+
+    /**
+     * Drops the elements of list, which must come from
+     * {@link #cachedList}, and stops caching it: for when its Dictionary is
+     * closed. Other lists are ignored.
+     */
+    public void release(final List<?> list) {
+        if (!(list instanceof CachedList) || ((CachedList<?>) list).budget() != this) {
+            return;
+        }
+        final CachedList<?> cachedList = (CachedList<?>) list;
+        synchronized (cachedList) {
+            cachedList.released = true;
+        }
+        cachedList.evictAll();
+        retire(cachedList.ref);
+    }
+
+    @Override
+    public String toString() {
+        final long[] stats = stats();
+        return String.format("CacheBudget(%d/%d bytes, %d entries, hits=%d, misses=%d, evictions=%d)",
+                bytes.get(), maxBytes, stats[3], stats[0], stats[1], stats[2]);
+    }
+
+    /**
+     * @return a view of source whose elements are cached under this budget.
+     */
+    <T> List<T> cachedList(final String name, final List<T> source, final Sizer<? super T> sizer) {
+        expungeCollected();
+        final CachedList<T> list = new CachedList<T>(name, source, sizer);
+        synchronized (listRefs) {
+            listRefs.add(list.ref);
+        }
+        return list;
+    }
+
+    private List<ListRef> liveRefs() {
+        expungeCollected();
+        synchronized (listRefs) {
+            return new ArrayList<ListRef>(listRefs);
+        }
+    }
+
+    /**
+     * Gives back the bytes of lists that were collected without being
+     * released.
+     */
+    private void expungeCollected() {
+        Reference<? extends CachedList<?>> ref;
+        while ((ref = collected.poll()) != null) {
+            // Nothing can update it any more.
+            bytes.addAndGet(-((ListRef) ref).bytes);
+            retire((ListRef) ref);
+        }
+    }
+
+    private void retire(final ListRef ref) {
+        synchronized (listRefs) {
+            if (listRefs.remove(ref)) {
+                retiredHits += ref.hits;
+                retiredMisses += ref.misses;
+                retiredEvictions += ref.evictions;
+            }
+        }
+    }
+
+    /**
+     * Evicts until under budget, each time from the list whose eldest
+     * element is the least recently used.
+     */
+    private void evict() {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+        synchronized (evictLock) {
+            final List<ListRef> refs = liveRefs();
+            while (bytes.get() > maxBytes) {
+                CachedList<?> victim = null;
+                long oldest = Long.MAX_VALUE;
+                long runnerUp = Long.MAX_VALUE;
+                for (final ListRef ref : refs) {
+                    final CachedList<?> list = ref.get();
+                    if (list == null) {
+                        continue;
+                    }
+                    final long eldest = list.eldestAccess();
+                    if (eldest < oldest) {
+                        runnerUp = oldest;
+                        oldest = eldest;
+                        victim = list;
+                    } else if (eldest < runnerUp) {
+                        runnerUp = eldest;
+                    }
+                }
+                if (victim == null) {
+                    return;
+                }
+                // Everything in it that is older than any other list's.
+                victim.evictOlderThan(runnerUp);
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------
+
+    private static final class Value {
+        final Object element;
+        final int size;
+        // System.nanoTime() of the last access, guarded by the list.
+        long lastAccess;
+
+        Value(final Object element, final int size, final long lastAccess) {
+            this.element = element;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * What the budget knows about a list, which outlives it: its bytes and
+     * counts, guarded by the list while it is alive.
+     */
+    private static final class ListRef extends WeakReference<CachedList<?>> {
+        long bytes = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+
+        ListRef(final CachedList<?> list, final ReferenceQueue<CachedList<?>> queue) {
+            super(list, queue);
+        }
+    }
+
+    private final class CachedList<T> extends AbstractList<T> implements RandomAccess {
+        private final String name;
+        private final List<T> source;
+        private final Sizer<? super T> sizer;
+        final ListRef ref;
+
+        // Guarded by this.
+        final LinkedHashMap<Integer, Value> lru = new LinkedHashMap<Integer, Value>(16, 0.75f,
+                true /* accessOrder */);
+        boolean released = false;
+
+        CachedList(final String name, final List<T> source, final Sizer<? super T> sizer) {
+            this.name = name;
+            this.source = source;
+            this.sizer = sizer;
+            this.ref = new ListRef(this, collected);
+        }
+
+        CacheBudget budget() {
+            return CacheBudget.this;
+        }
+
+        @Override
+        public int size() {
+            return source.size();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(final int i) {
+            synchronized (this) {
+                final Value value = lru.get(i);
+                if (value != null) {
+                    ++ref.hits;
+                    value.lastAccess = System.nanoTime();
+                    return (T) value.element;
+                }
+                ++ref.misses;
+            }
+            // Loaded outside the lock, so a slow read doesn't block other
+            // threads reading this list.
+            final T result = source.get(i);
+            final int size = sizer.sizeOf(result);
+            synchronized (this) {
+                if (released) {
+                    return result;
+                }
+                final Value old = lru.put(i, new Value(result, size, System.nanoTime()));
+                // Another thread may have loaded the same element.
+                final int added = old != null ? size - old.size : size;
+                ref.bytes += added;
+                bytes.addAndGet(added);
+            }
+            evict();
+            return result;
+        }
+
+        /**
+         * @return when the least recently used element was last used, or
+         *         Long.MAX_VALUE if there is none.
+         */
+        synchronized long eldestAccess() {
+            final Iterator<Value> it = lru.values().iterator();
+            return it.hasNext() ? it.next().lastAccess : Long.MAX_VALUE;
+        }
+
+        /**
+         * Evicts the least recently used element, and then any others not used
+         * since before, until the budget is met.
+         */
+        synchronized void evictOlderThan(final long lastAccess) {
+            final Iterator<Map.Entry<Integer, Value>> it = lru.entrySet().iterator();
+            boolean first = true;
+            while (it.hasNext() && bytes.get() > maxBytes) {
+                final Value eldest = it.next().getValue();
+                if (!first && eldest.lastAccess > lastAccess) {
+                    break;
+                }
+                first = false;
+                ref.bytes -= eldest.size;
+                ++ref.evictions;
+                bytes.addAndGet(-eldest.size);
+                it.remove();
+            }
+        }
+
+        synchronized void evictAll() {
+            ref.evictions += lru.size();
+            bytes.addAndGet(-ref.bytes);
+            ref.bytes = 0;
+            lru.clear();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s(size=%d, hits=%d, misses=%d, evictions=%d)", name, size(),
+                    ref.hits, ref.misses, ref.evictions);
+        }
+    }
+
+    // --------------------------------------------------------------------
+    // Estimates for what the engine keeps in these lists. Object headers and
+    // references are counted as 16 and 4 bytes.
+
+    static int sizeOf(final String s) {
+        return s == null ? 0 : 40 + 2 * s.length();
+    }
+
+    static final Sizer<String> STRING_SIZER = new Sizer<String>() {
+        @Override
+        public int sizeOf(String s) {
+            return CacheBudget.sizeOf(s);
+        }
+    };
+
+    static final Sizer<RowBase> ROW_SIZER = new Sizer<RowBase>() {
+        @Override
+        public int sizeOf(RowBase row) {
+            return 32;
+        }
+    };
+
+    static final Sizer<PairEntry> PAIR_ENTRY_SIZER = new Sizer<PairEntry>() {
+        @Override
+        public int sizeOf(PairEntry entry) {
+            int result = 48;
+            for (final Pair pair : entry.pairs) {
+                result += 24 + CacheBudget.sizeOf(pair.lang1) + CacheBudget.sizeOf(pair.lang2);
+            }
+            return result;
+        }
+    };
+
+    static final Sizer<TextEntry> TEXT_ENTRY_SIZER = new Sizer<TextEntry>() {
+        @Override
+        public int sizeOf(TextEntry entry) {
+            return 24 + CacheBudget.sizeOf(entry.text);
+        }
+    };
+
+    // The html itself is only softly referenced by its LazyHtmlLoader.
+    static final Sizer<HtmlEntry> HTML_ENTRY_SIZER = new Sizer<HtmlEntry>() {
+        @Override
+        public int sizeOf(HtmlEntry entry) {
+            return 80 + CacheBudget.sizeOf(entry.title);
+        }
+    };
+
+    static final Sizer<IndexEntry> INDEX_ENTRY_SIZER = new Sizer<IndexEntry>() {
+        @Override
+        public int sizeOf(IndexEntry entry) {
+            final int tokens = entry.holdsNormalizedToken() ? CacheBudget.sizeOf(entry.token)
+                    + CacheBudget.sizeOf(entry.normalizedToken()) : CacheBudget.sizeOf(entry.token);
+            return 64 + tokens;
+        }
+    };
+
+}
@@ -0,0 +1,209 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.MultiWordSearchResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The same multi-word search on several indices of a Dictionary at once, so
+ * the user doesn't have to know which language a word is in.
+ * <p>
+ * Each index is searched on its own thread with its own interrupted flag. As
+ * soon as one of them finds the query as a token (a title match), the ones
+ * still running are cancelled: they could only add rows ranked below it.
+ * Their rows are then missing from the results, while those of the indices
+ * that finished before the title match are merged in; which ones those are
+ * depends on timing.
+ */
+public final class CrossIndexSearch {
+
+    // How often the calling thread checks whether it was interrupted.
+    private static final long POLL_MILLIS = 10;
+
+    private CrossIndexSearch() {
+    }
+
+    private static final class Branch implements Callable<Branch> {
+        final Index index;
+        final int order;
+        final String searchText;
+        final List<String> searchTokens;
+        final int maxResults;
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+
+        MultiWordSearchResult result;
+
+        Branch(final Index index, final int order, final String searchText,
+                final List<String> searchTokens, final int maxResults) {
+            this.index = index;
+            this.order = order;
+            this.searchText = searchText;
+            // multiWordSearch normalizes them in place, for its index.
+            this.searchTokens = new ArrayList<String>(searchTokens);
+            this.maxResults = maxResults;
+        }
+
+        @Override
+        public Branch call() {
+            result = index.multiWordSearch(searchText, searchTokens, interrupted, maxResults,
+                    null);
+            return this;
+        }
+    }
+
+    /**
+     * A row found by one of the branches, with what it was ranked by there.
+     */
+    private static final class BranchMatch {
+        final RowBase row;
+        final boolean filedUnderAll;
+        final RowMatchType matchType;
+        final int normalizedLength;
+        final int branchOrder;
+        final int position;
+
+        BranchMatch(final RowBase row, final boolean filedUnderAll,
+                final RowMatchType matchType, final int normalizedLength,
+                final int branchOrder, final int position) {
+            this.row = row;
+            this.filedUnderAll = filedUnderAll;
+            this.matchType = matchType;
+            this.normalizedLength = normalizedLength;
+            this.branchOrder = branchOrder;
+            this.position = position;
+        }
+
+        // Same as within an index; ties go to the earlier index.
+        static final Comparator<BranchMatch> ORDER = new Comparator<BranchMatch>() {
+            @Override
+            public int compare(BranchMatch m1, BranchMatch m2) {
+                if (m1.filedUnderAll != m2.filedUnderAll) {
+                    return m1.filedUnderAll ? -1 : 1;
+                }
+                if (m1.matchType != m2.matchType) {
+                    return m1.matchType.compareTo(m2.matchType);
+                }
+                if (m1.normalizedLength != m2.normalizedLength) {
+                    return m1.normalizedLength < m2.normalizedLength ? -1 : 1;
+                }
+                if (m1.branchOrder != m2.branchOrder) {
+                    return m1.branchOrder < m2.branchOrder ? -1 : 1;
+                }
+                return m1.position < m2.position ? -1 : m1.position == m2.position ? 0 : 1;
+            }
+        };
+    }
+
+    /**
+     * @param indices searched in parallel on executor, which needs a thread
+     *            for each to be fully parallel; on ties, rows of earlier
+     *            indices come first.
+     * @return the best maxResults rows of all the indices, best first and each
+     *         entry only once, or null if interrupted. After a title match,
+     *         only the indices that had finished by then (see the class doc).
+     */
+    public static List<RowBase> search(final List<Index> indices, final String searchText,
+            final List<String> searchTokens, final AtomicBoolean interrupted,
+            final int maxResults, final Executor executor) {
+        final CompletionService<Branch> completionService = new ExecutorCompletionService<Branch>(
+                executor);
+        final List<Branch> branches = new ArrayList<Branch>(indices.size());
+        for (int i = 0; i < indices.size(); ++i) {
+            final Branch branch = new Branch(indices.get(i), i, searchText, searchTokens,
+                    maxResults);
+            branches.add(branch);
+            completionService.submit(branch);
+        }
+
+        final List<Branch> finished = new ArrayList<Branch>(branches.size());
+        try {
+            while (finished.size() < branches.size()) {
+                if (interrupted.get()) {
+                    cancel(branches);
+                    return null;
+                }
+                final Future<Branch> future = completionService.poll(POLL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    continue;
+                }
+                final Branch branch = future.get();
+                finished.add(branch);
+                if (branch.result != null && branch.result.hasTitleMatch()
+                        && finished.size() < branches.size()) {
+                    cancel(branches);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(branches);
+            return null;
+        } catch (ExecutionException e) {
+            cancel(branches);
+            throw new RuntimeException(e.getCause());
+        }
+
+        final List<BranchMatch> matches = new ArrayList<BranchMatch>();
+        for (final Branch branch : finished) {
+            final MultiWordSearchResult result = branch.result;
+            if (result == null) {
+                continue;
+            }
+            for (int i = 0; i < result.rows.size(); ++i) {
+                matches.add(new BranchMatch(result.rows.get(i), result.filedUnderAll[i],
+                        result.matchTypes[i], result.normalizedLengths[i], branch.order, i));
+            }
+        }
+        Collections.sort(matches, BranchMatch.ORDER);
+
+        // An entry is filed in every index, under a different row in each.
+        final Set<Integer> entriesSeen = new HashSet<Integer>();
+        final List<RowBase> rows = new ArrayList<RowBase>(Math.min(maxResults, matches.size()));
+        for (final BranchMatch match : matches) {
+            if (rows.size() == maxResults) {
+                break;
+            }
+            final int key = PostingList.key(RowTable.getType(match.row),
+                    match.row.referenceIndex);
+            if (key == -1 || entriesSeen.add(key)) {
+                rows.add(match.row);
+            }
+        }
+        return rows;
+    }
+
+    private static void cancel(final List<Branch> branches) {
+        for (final Branch branch : branches) {
+            branch.interrupted.set(true);
+        }
+    }
+
+}
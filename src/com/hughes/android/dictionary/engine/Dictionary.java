@@ -15,13 +15,20 @@
 package com.hughes.android.dictionary.engine;
 
 import com.hughes.android.dictionary.DictionaryInfo;
-import com.hughes.util.CachingList;
+import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
 import com.hughes.util.raf.RAFList;
 import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
+import com.hughes.util.raf.SerializableSerializer;
+import com.hughes.util.raf.UniformRAFList;
 
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
@@ -30,11 +37,12 @@ import java.util.List;
 
 public class Dictionary implements RAFSerializable<Dictionary> {
 
-    static final int CACHE_SIZE = 5000;
-
-    static final int CURRENT_DICT_VERSION = 6;
+    static final int CURRENT_DICT_VERSION = 14;
     static final String END_OF_DICTIONARY = "END OF DICTIONARY";
 
+    // Enough for the header and index summary of any sane dictionary.
+    private static final int SUMMARY_READ_BYTES = 4096;
+
     // persisted
     final int dictFileVersion;
     final long creationMillis;
@@ -45,9 +53,32 @@ public class Dictionary implements RAFSerializable<Dictionary> {
     public final List<EntrySource> sources;
     public final List<Index> indices;
 
+    // Read when the dictionary is opened, so that callers can look at the
+    // indices without opening them. Null for in-memory dictionaries.
+    private final List<IndexHeader> indexHeaders;
+    private final List<IndexInfo> indexInfos;
+
+    // Where the persisted data is read from, null for in-memory dictionaries.
+    final RandomAccessFile raf;
+    final MappedDictionaryFile mappedFile;
+
     /**
      * dictFileVersion 1 adds: <li>links to sources? dictFileVersion 2 adds: <li>
-     * counts of tokens in indices.
+     * counts of tokens in indices. dictFileVersion 7 adds: <li>a table of
+     * normalized tokens per index, for cheap binary search probes.
+     * dictFileVersion 8 adds: <li>a summary of the indices right after the
+     * header, so DictionaryInfo can be read without loading anything else.
+     * dictFileVersion 9 adds: <li>stoplists stored as sorted string tables
+     * instead of serialized Java objects. dictFileVersion 10 adds: <li>the
+     * collation key of every normalized token, so lookups compare bytes.
+     * dictFileVersion 11 adds: <li>cumulative row counts per index, so the
+     * number of rows under a range of entries is one subtraction.
+     * dictFileVersion 12 adds: <li>a posting list of the entries filed under
+     * each index entry, for intersecting multi-word searches.
+     * dictFileVersion 13 adds: <li>front coded normalized tokens, in place of
+     * the version 7 token table. dictFileVersion 14 adds: <li>a Bloom filter
+     * of the normalized tokens and their prefixes per index, so lookups of
+     * words that aren't there skip the binary search.
      */
 
     public Dictionary(final String dictInfo) {
@@ -59,55 +90,160 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         htmlEntries = new ArrayList<HtmlEntry>();
         sources = new ArrayList<EntrySource>();
         indices = new ArrayList<Index>();
+        indexHeaders = null;
+        indexInfos = null;
+        raf = null;
+        mappedFile = null;
     }
 
     public Dictionary(final RandomAccessFile raf) throws IOException {
-        dictFileVersion = raf.readInt();
+        this(raf, null, raf);
+    }
+
+    /**
+     * Opens the dictionary on top of a memory mapping, so that entries, rows
+     * and html can be decoded by many threads at once.
+     */
+    public Dictionary(final MappedDictionaryFile mappedFile) throws IOException {
+        this(null, mappedFile, mappedFile.cursor(0));
+    }
+
+    private Dictionary(final RandomAccessFile raf, final MappedDictionaryFile mappedFile,
+            final DataInput in) throws IOException {
+        this.raf = raf;
+        this.mappedFile = mappedFile;
+        dictFileVersion = in.readInt();
         if (dictFileVersion < 0 || dictFileVersion > CURRENT_DICT_VERSION) {
             throw new IOException("Invalid dictionary version: " + dictFileVersion);
         }
-        creationMillis = raf.readLong();
-        dictInfo = raf.readUTF();
+        creationMillis = in.readLong();
+        dictInfo = in.readUTF();
+        if (dictFileVersion >= 8) {
+            indexInfos = new ArrayList<IndexInfo>();
+            readIndexInfos(in, indexInfos);
+        } else {
+            indexInfos = null;
+        }
 
         // Load the sources, then seek past them, because reading them later
         // disrupts the offset.
         try {
-            final RAFList<EntrySource> rafSources = RAFList.create(raf, new EntrySource.Serializer(
-                    this), raf.getFilePointer());
+            final List<EntrySource> rafSources = readList(in, new EntrySource.Serializer(this));
+            final long sourcesEnd = getFilePointer(in);
             sources = new ArrayList<EntrySource>(rafSources);
-            raf.seek(rafSources.getEndOffset());
-
-            pairEntries = CachingList.create(
-                    RAFList.create(raf, new PairEntry.Serializer(this), raf.getFilePointer()),
-                    CACHE_SIZE);
-            textEntries = CachingList.create(
-                    RAFList.create(raf, new TextEntry.Serializer(this), raf.getFilePointer()),
-                    CACHE_SIZE);
+            seek(in, sourcesEnd);
+
+            final CacheBudget cacheBudget = CacheBudget.global();
+            pairEntries = cacheBudget.cachedList("pairEntries",
+                    readList(in, new PairEntry.Serializer(this)),
+                    CacheBudget.PAIR_ENTRY_SIZER);
+            textEntries = cacheBudget.cachedList("textEntries",
+                    readList(in, new TextEntry.Serializer(this)),
+                    CacheBudget.TEXT_ENTRY_SIZER);
             if (dictFileVersion >= 5) {
-                htmlEntries = CachingList.create(
-                        RAFList.create(raf, new HtmlEntry.Serializer(this), raf.getFilePointer()),
-                        CACHE_SIZE);
+                htmlEntries = cacheBudget.cachedList("htmlEntries",
+                        readList(in, new HtmlEntry.Serializer(this)),
+                        CacheBudget.HTML_ENTRY_SIZER);
             } else {
                 htmlEntries = Collections.emptyList();
             }
-            indices = CachingList.createFullyCached(RAFList.create(raf, indexSerializer,
-                    raf.getFilePointer()));
+            // Indices are only opened when they're first used, but their
+            // headers are cheap to read up front.
+            final long indicesStart = getFilePointer(in);
+            final List<IndexHeader> rafIndexHeaders = readList(in, new IndexHeaderSerializer());
+            indexHeaders = new ArrayList<IndexHeader>(rafIndexHeaders);
+            seek(in, indicesStart);
+            indices = new LazyList<Index>(readList(in, indexSerializer));
         } catch (RuntimeException e) {
             final IOException ioe = new IOException("RuntimeException loading dictionary");
             ioe.initCause(e);
             throw ioe;
         }
-        final String end = raf.readUTF();
+        final String end = in.readUTF();
         if (!end.equals(END_OF_DICTIONARY)) {
             throw new IOException("Dictionary seems corrupt: " + end);
         }
     }
 
+    // --------------------------------------------------------------------------
+    // Backend plumbing: exactly one of raf and mappedFile is set for a
+    // Dictionary that was read from disk.
+    // --------------------------------------------------------------------------
+
+    long getFilePointer(final DataInput in) throws IOException {
+        if (mappedFile != null) {
+            return ((MappedDictionaryFile.Cursor) in).position();
+        }
+        return raf.getFilePointer();
+    }
+
+    void seek(final DataInput in, final long offset) throws IOException {
+        if (mappedFile != null) {
+            ((MappedDictionaryFile.Cursor) in).seek(offset);
+        } else {
+            raf.seek(offset);
+        }
+    }
+
+    /**
+     * Creates a lazy list starting at in's position, and leaves in positioned
+     * just past the end of it.
+     */
+    <T, S extends RAFListSerializer<T> & MappedList.Reader<T>> List<T> readList(
+            final DataInput in, final S serializer) throws IOException {
+        if (mappedFile != null) {
+            final MappedList<T> list = MappedList.create(mappedFile, serializer,
+                    getFilePointer(in));
+            seek(in, list.getEndOffset());
+            return list;
+        }
+        return RAFList.create(raf, serializer, raf.getFilePointer());
+    }
+
+    /**
+     * Like {@link #readList}, for lists written with UniformRAFList.
+     */
+    <T, S extends RAFListSerializer<T> & MappedList.Reader<T>> List<T> readUniformList(
+            final DataInput in, final S serializer) throws IOException {
+        if (mappedFile != null) {
+            final MappedList<T> list = MappedList.createUniform(mappedFile, serializer,
+                    getFilePointer(in));
+            seek(in, list.getEndOffset());
+            return list;
+        }
+        return UniformRAFList.create(raf, serializer, raf.getFilePointer());
+    }
+
+    /**
+     * Reads an object written with SerializableSerializer.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T readSerializable(final DataInput in) throws IOException {
+        if (mappedFile == null) {
+            return new SerializableSerializer<T>().read(raf);
+        }
+        final ObjectInputStream ois = new ObjectInputStream(
+                ((MappedDictionaryFile.Cursor) in).asInputStream());
+        try {
+            return (T) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            final IOException ioe = new IOException("Unable to deserialize");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
     @Override
     public void write(RandomAccessFile raf) throws IOException {
         raf.writeInt(dictFileVersion);
         raf.writeLong(creationMillis);
         raf.writeUTF(dictInfo);
+        if (dictFileVersion >= 8) {
+            raf.writeInt(indices.size());
+            for (final Index index : indices) {
+                index.getIndexInfo().write(raf);
+            }
+        }
         RAFList.write(raf, sources, new EntrySource.Serializer(this));
         RAFList.write(raf, pairEntries, new PairEntry.Serializer(this));
         RAFList.write(raf, textEntries, new TextEntry.Serializer(this));
@@ -116,19 +252,88 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         raf.writeUTF(END_OF_DICTIONARY);
     }
 
-    private final RAFListSerializer<Index> indexSerializer = new RAFListSerializer<Index>() {
+    private final IndexSerializer indexSerializer = new IndexSerializer();
+
+    private final class IndexSerializer implements RAFListSerializer<Index>,
+            MappedList.Reader<Index> {
         @Override
         public Index read(RandomAccessFile raf, final int readIndex) throws IOException {
-            return new Index(Dictionary.this, raf);
+            return read((DataInput) raf, readIndex);
+        }
+
+        @Override
+        public Index read(DataInput in, final int readIndex) throws IOException {
+            return new Index(Dictionary.this, in);
         }
 
         @Override
         public void write(RandomAccessFile raf, Index t) throws IOException {
             t.write(raf);
         }
-    };
+    }
+
+    /**
+     * The first few fields of an Index, which identify it.
+     */
+    public static final class IndexHeader {
+        public final String shortName;
+        public final String longName;
+        public final Language sortLanguage;
+
+        IndexHeader(final String shortName, final String longName,
+                final Language sortLanguage) {
+            this.shortName = shortName;
+            this.longName = longName;
+            this.sortLanguage = sortLanguage;
+        }
+
+        /**
+         * Index.write starts with this, so IndexHeaderSerializer can read it
+         * back from a whole index.
+         */
+        void write(final RandomAccessFile raf) throws IOException {
+            raf.writeUTF(shortName);
+            raf.writeUTF(longName);
+            raf.writeUTF(sortLanguage.getIsoCode());
+        }
+    }
+
+    private static final class IndexHeaderSerializer implements RAFListSerializer<IndexHeader>,
+            MappedList.Reader<IndexHeader> {
+        @Override
+        public IndexHeader read(RandomAccessFile raf, final int readIndex) throws IOException {
+            return read((DataInput) raf, readIndex);
+        }
+
+        @Override
+        public IndexHeader read(DataInput in, final int readIndex) throws IOException {
+            // Same order as the start of Index(Dictionary, DataInput).
+            final String shortName = in.readUTF();
+            final String longName = in.readUTF();
+            return new IndexHeader(shortName, longName, Language.lookup(in.readUTF()));
+        }
 
-    final RAFListSerializer<HtmlEntry> htmlEntryIndexSerializer = new RAFListSerializer<HtmlEntry>() {
+        @Override
+        public void write(RandomAccessFile raf, IndexHeader t) throws IOException {
+            t.write(raf);
+        }
+    }
+
+    /**
+     * Doesn't open the index.
+     */
+    public IndexHeader getIndexHeader(final int i) {
+        if (indexHeaders != null) {
+            return indexHeaders.get(i);
+        }
+        final Index index = indices.get(i);
+        return new IndexHeader(index.shortName, index.longName, index.sortLanguage);
+    }
+
+    final HtmlEntryIndexSerializer htmlEntryIndexSerializer = new HtmlEntryIndexSerializer();
+
+    final class HtmlEntryIndexSerializer implements RAFListSerializer<HtmlEntry>,
+            MappedList.Reader<HtmlEntry> {
         @Override
         public void write(RandomAccessFile raf, HtmlEntry t) throws IOException {
             if (t.index() == -1)
@@ -138,9 +343,14 @@ public class Dictionary implements RAFSerializable<Dictionary> {
 
         @Override
         public HtmlEntry read(RandomAccessFile raf, int readIndex) throws IOException {
-            return htmlEntries.get(raf.readInt());
+            return read((DataInput) raf, readIndex);
         }
-    };
+
+        @Override
+        public HtmlEntry read(DataInput in, int readIndex) throws IOException {
+            return htmlEntries.get(in.readInt());
+        }
+    }
 
     public void print(final PrintStream out) {
         out.println("dictInfo=" + dictInfo);
@@ -155,17 +365,109 @@ public class Dictionary implements RAFSerializable<Dictionary> {
         }
     }
 
+    /**
+     * Gives back what this dictionary holds in the shared CacheBudget, for
+     * when it is being closed. It can still be read, uncached.
+     */
+    public void releaseCaches() {
+        final CacheBudget cacheBudget = CacheBudget.global();
+        cacheBudget.release(pairEntries);
+        cacheBudget.release(textEntries);
+        cacheBudget.release(htmlEntries);
+        for (int i = 0; i < indices.size(); ++i) {
+            // Without opening the ones that weren't used.
+            if (!(indices instanceof LazyList) || ((LazyList<?>) indices).isLoaded(i)) {
+                indices.get(i).releaseCaches();
+            }
+        }
+    }
+
     public DictionaryInfo getDictionaryInfo() {
         final DictionaryInfo result = new DictionaryInfo();
         result.creationMillis = this.creationMillis;
         result.dictInfo = this.dictInfo;
+        if (indexInfos != null) {
+            // Saves opening every index.
+            result.indexInfos.addAll(indexInfos);
+            return result;
+        }
         for (final Index index : indices) {
             result.indexInfos.add(index.getIndexInfo());
         }
         return result;
     }
 
+    private static void readIndexInfos(final DataInput in, final List<IndexInfo> result)
+            throws IOException {
+        final int numIndices = in.readInt();
+        for (int i = 0; i < numIndices; ++i) {
+            result.add(new IndexInfo(in));
+        }
+    }
+
+    /**
+     * Reads just the version and creationMillis at the start of file, which
+     * every version has.
+     *
+     * @return the creationMillis, or -1 if file isn't a valid dictionary.
+     */
+    public static long getCreationMillis(final File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final int dictFileVersion = raf.readInt();
+            if (dictFileVersion < 0 || dictFileVersion > CURRENT_DICT_VERSION) {
+                return -1;
+            }
+            return raf.readLong();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Version 8+ files keep everything DictionaryInfo needs at the start of the
+     * file, so this is a single small read. Older files get fully opened.
+     */
     public static DictionaryInfo getDictionaryInfo(final File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    SUMMARY_READ_BYTES));
+            final int dictFileVersion = in.readInt();
+            if (dictFileVersion >= 8 && dictFileVersion <= CURRENT_DICT_VERSION) {
+                final DictionaryInfo dictionaryInfo = new DictionaryInfo();
+                dictionaryInfo.creationMillis = in.readLong();
+                dictionaryInfo.dictInfo = in.readUTF();
+                readIndexInfos(in, dictionaryInfo.indexInfos);
+                dictionaryInfo.uncompressedFilename = file.getName();
+                dictionaryInfo.uncompressedBytes = file.length();
+                dictionaryInfo.lastModified = file.lastModified();
+                return dictionaryInfo;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return getDictionaryInfoFromDictionary(file);
+    }
+
+    private static DictionaryInfo getDictionaryInfoFromDictionary(final File file) {
         RandomAccessFile raf = null;
         try {
             raf = new RandomAccessFile(file, "r");
@@ -173,6 +475,7 @@ public class Dictionary implements RAFSerializable<Dictionary> {
             final DictionaryInfo dictionaryInfo = dict.getDictionaryInfo();
             dictionaryInfo.uncompressedFilename = file.getName();
             dictionaryInfo.uncompressedBytes = file.length();
+            dictionaryInfo.lastModified = file.lastModified();
             raf.close();
             return dictionaryInfo;
         } catch (IOException e) {
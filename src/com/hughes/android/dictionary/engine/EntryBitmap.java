@@ -0,0 +1,469 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of entry keys (see {@link PostingList#key}), in the style
+ * of a Roaring bitmap: keys are grouped by their high 16 bits, and each group
+ * is a sorted char array while it is sparse, a 65536-bit bitmap once it holds
+ * more than {@link #ARRAY_MAX} keys, or a list of runs when the keys are
+ * mostly consecutive, whichever is smallest. and/or/andNot work a group at a
+ * time, so the sets for all the tokens of a query can be combined before any
+ * row is read.
+ */
+final class EntryBitmap {
+
+    static final int ARRAY_MAX = 4096;
+
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private char[] highs;
+    private Container[] containers;
+    private int numContainers;
+    private int cardinality;
+
+    private EntryBitmap(final int capacity) {
+        highs = new char[capacity];
+        containers = new Container[capacity];
+    }
+
+    /**
+     * @param sortedKeys distinct, non-negative and increasing.
+     */
+    static EntryBitmap of(final int[] sortedKeys) {
+        final EntryBitmap result = new EntryBitmap(4);
+        int start = 0;
+        while (start < sortedKeys.length) {
+            final int high = sortedKeys[start] >>> 16;
+            int end = start + 1;
+            while (end < sortedKeys.length && (sortedKeys[end] >>> 16) == high) {
+                ++end;
+            }
+            final char[] lows = new char[end - start];
+            for (int i = start; i < end; ++i) {
+                lows[i - start] = (char) sortedKeys[i];
+            }
+            result.append((char) high, Container.fromArray(lows, lows.length));
+            start = end;
+        }
+        return result;
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    boolean contains(final int key) {
+        if (key < 0) {
+            return false;
+        }
+        final int i = Arrays.binarySearch(highs, 0, numContainers, (char) (key >>> 16));
+        return i >= 0 && containers[i].contains((char) key);
+    }
+
+    EntryBitmap and(final EntryBitmap that) {
+        final EntryBitmap result = new EntryBitmap(Math.min(numContainers, that.numContainers));
+        int i = 0;
+        int j = 0;
+        while (i < numContainers && j < that.numContainers) {
+            if (highs[i] < that.highs[j]) {
+                ++i;
+            } else if (highs[i] > that.highs[j]) {
+                ++j;
+            } else {
+                result.append(highs[i], containers[i].and(that.containers[j]));
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    EntryBitmap or(final EntryBitmap that) {
+        final EntryBitmap result = new EntryBitmap(numContainers + that.numContainers);
+        int i = 0;
+        int j = 0;
+        while (i < numContainers || j < that.numContainers) {
+            if (j == that.numContainers || (i < numContainers && highs[i] < that.highs[j])) {
+                result.append(highs[i], containers[i]);
+                ++i;
+            } else if (i == numContainers || highs[i] > that.highs[j]) {
+                result.append(that.highs[j], that.containers[j]);
+                ++j;
+            } else {
+                result.append(highs[i], containers[i].or(that.containers[j]));
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    EntryBitmap andNot(final EntryBitmap that) {
+        final EntryBitmap result = new EntryBitmap(numContainers);
+        int j = 0;
+        for (int i = 0; i < numContainers; ++i) {
+            while (j < that.numContainers && that.highs[j] < highs[i]) {
+                ++j;
+            }
+            if (j < that.numContainers && that.highs[j] == highs[i]) {
+                result.append(highs[i], containers[i].andNot(that.containers[j]));
+            } else {
+                result.append(highs[i], containers[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the union of all of bitmaps, merged pairwise so the big ones are
+     *         only copied O(log n) times.
+     */
+    static EntryBitmap union(final EntryBitmap[] bitmaps, final int from, final int to) {
+        if (to - from == 0) {
+            return new EntryBitmap(0);
+        }
+        if (to - from == 1) {
+            return bitmaps[from];
+        }
+        final int mid = (from + to) >>> 1;
+        return union(bitmaps, from, mid).or(union(bitmaps, mid, to));
+    }
+
+    private void append(final char high, final Container container) {
+        if (container.cardinality == 0) {
+            return;
+        }
+        if (numContainers == highs.length) {
+            final int capacity = Math.max(4, numContainers * 2);
+            highs = Arrays.copyOf(highs, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+        }
+        highs[numContainers] = high;
+        containers[numContainers] = container;
+        ++numContainers;
+        cardinality += container.cardinality;
+    }
+
+    // --------------------------------------------------------------------
+
+    /**
+     * The low 16 bits of the keys sharing some high 16 bits, as whichever of
+     * a sorted array, a bitmap or a list of runs is smallest: exactly one of
+     * array, bitmap and runs is set.
+     */
+    private static final class Container {
+        char[] array;
+        long[] bitmap;
+        // (start, length - 1) pairs, in increasing order.
+        char[] runs;
+        int numRuns;
+        int cardinality;
+
+        /**
+         * @param array sorted; becomes a run container if that is smaller.
+         */
+        static Container fromArray(final char[] array, final int cardinality) {
+            int numRuns = 0;
+            for (int i = 0; i < cardinality; ++i) {
+                if (i == 0 || array[i] != array[i - 1] + 1) {
+                    ++numRuns;
+                }
+            }
+            if (numRuns * 2 < cardinality) {
+                final char[] runs = new char[numRuns * 2];
+                int n = -1;
+                for (int i = 0; i < cardinality; ++i) {
+                    if (i == 0 || array[i] != array[i - 1] + 1) {
+                        runs[++n] = array[i];
+                        ++n;
+                    } else {
+                        ++runs[n];
+                    }
+                }
+                return fromRuns(runs, numRuns, cardinality);
+            }
+            final Container result = new Container();
+            result.array = array;
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        static Container fromBitmap(final long[] bitmap, final int cardinality) {
+            final int numRuns = countRuns(bitmap);
+            if (numRuns * 4 < Math.min(cardinality * 2, BITMAP_WORDS * 8)) {
+                final char[] runs = new char[numRuns * 2];
+                int n = 0;
+                int start = nextSetBit(bitmap, 0);
+                while (start != -1) {
+                    final int end = nextClearBit(bitmap, start);
+                    runs[n++] = (char) start;
+                    runs[n++] = (char) (end - start - 1);
+                    start = end < 1 << 16 ? nextSetBit(bitmap, end) : -1;
+                }
+                return fromRuns(runs, numRuns, cardinality);
+            }
+            if (cardinality <= ARRAY_MAX) {
+                final char[] array = new char[cardinality];
+                int n = 0;
+                for (int w = 0; w < bitmap.length; ++w) {
+                    long word = bitmap[w];
+                    while (word != 0) {
+                        array[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                final Container result = new Container();
+                result.array = array;
+                result.cardinality = n;
+                return result;
+            }
+            final Container result = new Container();
+            result.bitmap = bitmap;
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        private static Container fromRuns(final char[] runs, final int numRuns,
+                final int cardinality) {
+            final Container result = new Container();
+            result.runs = runs;
+            result.numRuns = numRuns;
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        private static int countRuns(final long[] bitmap) {
+            int numRuns = 0;
+            long previous = 0;
+            for (final long word : bitmap) {
+                // The bits that are set with the one below them clear.
+                numRuns += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+            return numRuns;
+        }
+
+        /**
+         * @return the first set bit at or after from, or -1.
+         */
+        private static int nextSetBit(final long[] bitmap, final int from) {
+            int w = from >>> 6;
+            long word = bitmap[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = bitmap[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        /**
+         * @return the first clear bit at or after from, or 1 << 16.
+         */
+        private static int nextClearBit(final long[] bitmap, final int from) {
+            int w = from >>> 6;
+            long word = ~bitmap[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return 1 << 16;
+                }
+                word = ~bitmap[w];
+            }
+            return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+
+        private static int count(final long[] bitmap) {
+            int n = 0;
+            for (final long word : bitmap) {
+                n += Long.bitCount(word);
+            }
+            return n;
+        }
+
+        boolean contains(final char low) {
+            if (bitmap != null) {
+                return (bitmap[low >>> 6] & (1L << low)) != 0;
+            }
+            if (runs != null) {
+                // The last run starting at or before low.
+                int start = 0;
+                int end = numRuns;
+                while (start < end) {
+                    final int mid = (start + end) >>> 1;
+                    if (runs[mid * 2] <= low) {
+                        start = mid + 1;
+                    } else {
+                        end = mid;
+                    }
+                }
+                return start > 0 && low - runs[start * 2 - 2] <= runs[start * 2 - 1];
+            }
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        private long[] toBitmap() {
+            if (bitmap != null) {
+                return bitmap.clone();
+            }
+            final long[] result = new long[BITMAP_WORDS];
+            orInto(result);
+            return result;
+        }
+
+        private void orInto(final long[] words) {
+            if (bitmap != null) {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    words[w] |= bitmap[w];
+                }
+            } else if (runs != null) {
+                for (int r = 0; r < numRuns; ++r) {
+                    final int last = runs[r * 2] + runs[r * 2 + 1];
+                    for (int low = runs[r * 2]; low <= last; ++low) {
+                        words[low >>> 6] |= 1L << low;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; ++i) {
+                    words[array[i] >>> 6] |= 1L << array[i];
+                }
+            }
+        }
+
+        private void clearFrom(final long[] words) {
+            if (bitmap != null) {
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    words[w] &= ~bitmap[w];
+                }
+            } else if (runs != null) {
+                for (int r = 0; r < numRuns; ++r) {
+                    final int last = runs[r * 2] + runs[r * 2 + 1];
+                    for (int low = runs[r * 2]; low <= last; ++low) {
+                        words[low >>> 6] &= ~(1L << low);
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; ++i) {
+                    words[array[i] >>> 6] &= ~(1L << array[i]);
+                }
+            }
+        }
+
+        Container and(final Container that) {
+            if (array != null && that.array != null) {
+                return cardinality <= that.cardinality ? intersect(this, that) : intersect(that,
+                        this);
+            }
+            if (array != null || that.array != null) {
+                // One is an array: keep its elements that are in the other.
+                final Container small = array != null ? this : that;
+                final Container other = small == this ? that : this;
+                final char[] result = new char[small.cardinality];
+                int n = 0;
+                for (int i = 0; i < small.cardinality; ++i) {
+                    if (other.contains(small.array[i])) {
+                        result[n++] = small.array[i];
+                    }
+                }
+                return fromArray(result, n);
+            }
+            final long[] result = toBitmap();
+            final long[] other = that.bitmap != null ? that.bitmap : that.toBitmap();
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                result[w] &= other[w];
+            }
+            return fromBitmap(result, count(result));
+        }
+
+        /**
+         * Two arrays: walks the smaller one, galloping through the larger one,
+         * so it costs O(m log(n / m)) rather than O(m + n). The entries under
+         * a rare token are usually a handful against thousands.
+         */
+        private static Container intersect(final Container small, final Container large) {
+            final char[] result = new char[small.cardinality];
+            int n = 0;
+            int from = 0;
+            for (int i = 0; i < small.cardinality && from < large.cardinality; ++i) {
+                final char low = small.array[i];
+                // Gallop to a range that must hold low, then binary search it.
+                int step = 1;
+                int to = from;
+                while (to < large.cardinality && large.array[to] < low) {
+                    from = to + 1;
+                    to += step;
+                    step <<= 1;
+                }
+                final int found = Arrays.binarySearch(large.array, from, Math.min(to + 1,
+                        large.cardinality), low);
+                if (found >= 0) {
+                    result[n++] = low;
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            return fromArray(result, n);
+        }
+
+        Container or(final Container that) {
+            if (array != null && that.array != null
+                    && cardinality + that.cardinality <= ARRAY_MAX) {
+                final char[] result = new char[cardinality + that.cardinality];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < cardinality || j < that.cardinality) {
+                    if (j == that.cardinality || (i < cardinality && array[i] < that.array[j])) {
+                        result[n++] = array[i++];
+                    } else if (i == cardinality || array[i] > that.array[j]) {
+                        result[n++] = that.array[j++];
+                    } else {
+                        result[n++] = array[i++];
+                        ++j;
+                    }
+                }
+                return fromArray(result, n);
+            }
+            final long[] result = toBitmap();
+            that.orInto(result);
+            return fromBitmap(result, count(result));
+        }
+
+        Container andNot(final Container that) {
+            if (array != null) {
+                final char[] result = new char[cardinality];
+                int n = 0;
+                for (int i = 0; i < cardinality; ++i) {
+                    if (!that.contains(array[i])) {
+                        result[n++] = array[i];
+                    }
+                }
+                return fromArray(result, n);
+            }
+            final long[] result = toBitmap();
+            that.clearFrom(result);
+            return fromBitmap(result, count(result));
+        }
+    }
+
+}
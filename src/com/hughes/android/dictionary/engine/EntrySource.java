@@ -17,6 +17,7 @@ package com.hughes.android.dictionary.engine;
 import com.hughes.util.IndexedObject;
 import com.hughes.util.raf.RAFListSerializer;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
@@ -47,7 +48,8 @@ public class EntrySource extends IndexedObject implements Serializable {
         return name;
     }
 
-    public static final class Serializer implements RAFListSerializer<EntrySource> {
+    public static final class Serializer implements RAFListSerializer<EntrySource>,
+            MappedList.Reader<EntrySource> {
 
         final Dictionary dictionary;
 
@@ -58,8 +60,14 @@ public class EntrySource extends IndexedObject implements Serializable {
         @Override
         public EntrySource read(RandomAccessFile raf, int readIndex)
                 throws IOException {
-            final String name = raf.readUTF();
-            final int numEntries = dictionary.dictFileVersion >= 3 ? raf.readInt() : 0;
+            return read((DataInput) raf, readIndex);
+        }
+
+        @Override
+        public EntrySource read(DataInput in, int readIndex)
+                throws IOException {
+            final String name = in.readUTF();
+            final int numEntries = dictionary.dictFileVersion >= 3 ? in.readInt() : 0;
             return new EntrySource(readIndex, name, numEntries);
         }
 
@@ -0,0 +1,348 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Looks a word up in many dictionary files at once: which of them know it,
+ * and under which indices.
+ * <p>
+ * Keeps each file open between searches (a mapped file and the Dictionary
+ * header, which is all that opening one reads; indices are loaded when first
+ * searched), and reopens it if the file changes. Searches run on at most
+ * parallelism threads, and a dictionary that takes longer than its deadline is
+ * reported as timed out rather than holding up the others.
+ */
+public final class FederatedSearch {
+
+    // How often the calling thread checks deadlines and interruption.
+    private static final long POLL_MILLIS = 10;
+
+    private final ExecutorService executor;
+    private final long perDictionaryMillis;
+
+    private final Map<File, Handle> handles = new LinkedHashMap<File, Handle>();
+
+    public FederatedSearch(final int parallelism, final long perDictionaryMillis) {
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "federatedSearch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.perDictionaryMillis = perDictionaryMillis;
+    }
+
+    /**
+     * Where a word was found in one dictionary.
+     */
+    public static final class Hit {
+        public final Index index;
+        public final IndexEntry indexEntry;
+        public final boolean hasMainEntry;
+
+        Hit(final Index index, final IndexEntry indexEntry, final boolean hasMainEntry) {
+            this.index = index;
+            this.indexEntry = indexEntry;
+            this.hasMainEntry = hasMainEntry;
+        }
+    }
+
+    /**
+     * Everything found in one dictionary.
+     */
+    public static final class Result {
+        public final File file;
+        // Null if the dictionary couldn't be searched.
+        public final Dictionary dictionary;
+        // Main entries first, then in index order.
+        public final List<Hit> hits;
+        public final boolean timedOut;
+
+        Result(final File file, final Dictionary dictionary, final List<Hit> hits,
+                final boolean timedOut) {
+            this.file = file;
+            this.dictionary = dictionary;
+            this.hits = hits;
+            this.timedOut = timedOut;
+        }
+
+        public boolean isFound() {
+            return !hits.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Result(%s,%d hits%s)", file.getName(), hits.size(),
+                    timedOut ? ",timedOut" : "");
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the searching thread, for each dictionary as soon as it is
+         * done (or timed out).
+         */
+        void onResult(Result result);
+    }
+
+    /**
+     * Looks word up in every index of every one of files. Handles to files
+     * that aren't in the list any more are closed.
+     *
+     * @param listener may be null.
+     * @return a Result for each of files, in the same order, or null if
+     *         interrupted.
+     */
+    public List<Result> search(final List<File> files, final String word,
+            final Listener listener, final AtomicBoolean interrupted) {
+        retainOnly(files);
+
+        final CompletionService<Result> completionService = new ExecutorCompletionService<Result>(
+                executor);
+        final List<Lookup> lookups = new ArrayList<Lookup>(files.size());
+        final Map<Future<Result>, Lookup> futures = new LinkedHashMap<Future<Result>, Lookup>();
+        for (final File file : files) {
+            final Lookup lookup = new Lookup(file, word);
+            lookups.add(lookup);
+            futures.put(completionService.submit(lookup), lookup);
+        }
+
+        final Map<Lookup, Result> results = new LinkedHashMap<Lookup, Result>();
+        try {
+            while (results.size() < lookups.size()) {
+                if (interrupted.get()) {
+                    cancel(futures);
+                    return null;
+                }
+                final Future<Result> future = completionService.poll(POLL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    final Lookup lookup = futures.get(future);
+                    if (!results.containsKey(lookup)) {
+                        report(results, lookup, future.get(), listener);
+                    }
+                }
+                final long now = System.nanoTime();
+                for (final Lookup lookup : lookups) {
+                    if (!results.containsKey(lookup) && lookup.isOverdue(now)) {
+                        // Stops it at its next probe, freeing the thread.
+                        lookup.interrupted.set(true);
+                        report(results, lookup, new Result(lookup.file, null,
+                                Collections.<Hit> emptyList(), true), listener);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(futures);
+            return null;
+        } catch (ExecutionException e) {
+            cancel(futures);
+            throw new RuntimeException(e.getCause());
+        }
+
+        final List<Result> ordered = new ArrayList<Result>(lookups.size());
+        for (final Lookup lookup : lookups) {
+            ordered.add(results.get(lookup));
+        }
+        return ordered;
+    }
+
+    private static void report(final Map<Lookup, Result> results, final Lookup lookup,
+            final Result result, final Listener listener) {
+        results.put(lookup, result);
+        if (listener != null) {
+            listener.onResult(result);
+        }
+    }
+
+    /**
+     * Drops the lookups that haven't started, and stops the running ones at
+     * their next probe.
+     */
+    private static void cancel(final Map<Future<Result>, Lookup> futures) {
+        for (final Map.Entry<Future<Result>, Lookup> entry : futures.entrySet()) {
+            entry.getValue().interrupted.set(true);
+            entry.getKey().cancel(false);
+        }
+    }
+
+    /**
+     * Looks word up in one dictionary, giving up at the next probe once
+     * interrupted.
+     */
+    private final class Lookup implements Callable<Result> {
+        final File file;
+        final String word;
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        // When it started running, 0 until then.
+        volatile long startNanos = 0;
+
+        Lookup(final File file, final String word) {
+            this.file = file;
+            this.word = word;
+        }
+
+        boolean isOverdue(final long now) {
+            final long start = startNanos;
+            return start != 0
+                    && now - start > TimeUnit.MILLISECONDS.toNanos(perDictionaryMillis);
+        }
+
+        @Override
+        public Result call() {
+            startNanos = System.nanoTime();
+            if (interrupted.get()) {
+                return new Result(file, null, Collections.<Hit> emptyList(), true);
+            }
+            final Dictionary dictionary;
+            try {
+                dictionary = getDictionary(file);
+            } catch (IOException e) {
+                System.err.println("Unable to open " + file + ": " + e);
+                return new Result(file, null, Collections.<Hit> emptyList(), false);
+            }
+            final List<Hit> mainHits = new ArrayList<Hit>();
+            final List<Hit> otherHits = new ArrayList<Hit>();
+            for (final Index index : dictionary.indices) {
+                if (interrupted.get()) {
+                    return new Result(file, dictionary, Collections.<Hit> emptyList(), true);
+                }
+                final IndexEntry indexEntry = index.findExact(word, interrupted);
+                if (interrupted.get()) {
+                    return new Result(file, dictionary, Collections.<Hit> emptyList(), true);
+                }
+                if (indexEntry == null) {
+                    continue;
+                }
+                final boolean hasMainEntry = index.rowTable.getType(indexEntry.startRow)
+                        == RowTable.TOKEN_ROW_MAIN;
+                (hasMainEntry ? mainHits : otherHits).add(new Hit(index, indexEntry,
+                        hasMainEntry));
+            }
+            mainHits.addAll(otherHits);
+            return new Result(file, dictionary, mainHits, false);
+        }
+    }
+
+    // --------------------------------------------------------------------------
+    // Handles
+    // --------------------------------------------------------------------------
+
+    /**
+     * An open dictionary file, valid as long as the file is unchanged.
+     */
+    private static final class Handle {
+        final long lastModified;
+        final long length;
+        final MappedDictionaryFile mappedFile;
+        final Dictionary dictionary;
+
+        Handle(final File file) throws IOException {
+            lastModified = file.lastModified();
+            length = file.length();
+            mappedFile = new MappedDictionaryFile(file);
+            try {
+                dictionary = new Dictionary(mappedFile);
+            } catch (IOException e) {
+                mappedFile.close();
+                throw e;
+            }
+        }
+
+        boolean isCurrent(final File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+
+        void close() {
+            dictionary.releaseCaches();
+            try {
+                mappedFile.close();
+            } catch (IOException e) {
+                System.err.println("Unable to close " + mappedFile + ": " + e);
+            }
+        }
+    }
+
+    private Dictionary getDictionary(final File file) throws IOException {
+        synchronized (handles) {
+            final Handle handle = handles.get(file);
+            if (handle != null) {
+                if (handle.isCurrent(file)) {
+                    return handle.dictionary;
+                }
+                handles.remove(file).close();
+            }
+        }
+        // Opened without the lock, so the others can open theirs.
+        final Handle opened = new Handle(file);
+        synchronized (handles) {
+            final Handle raced = handles.get(file);
+            if (raced != null && raced.isCurrent(file)) {
+                opened.close();
+                return raced.dictionary;
+            }
+            handles.put(file, opened);
+            return opened.dictionary;
+        }
+    }
+
+    private void retainOnly(final List<File> files) {
+        final Set<File> keep = new HashSet<File>(files);
+        synchronized (handles) {
+            for (final Iterator<Map.Entry<File, Handle>> it = handles.entrySet().iterator(); it
+                    .hasNext();) {
+                final Map.Entry<File, Handle> entry = it.next();
+                if (!keep.contains(entry.getKey())) {
+                    entry.getValue().close();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every open dictionary; they are reopened by the next search.
+     */
+    public void closeHandles() {
+        retainOnly(Collections.<File> emptyList());
+    }
+
+}
@@ -0,0 +1,167 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the tokens of an Index within a small edit distance of a query.
+ * <p>
+ * The sorted normalized tokens are walked as if they were a trie, in step
+ * with a Levenshtein automaton for the query (simulated one row of the edit
+ * distance table per character). The children of a prefix are found with
+ * binary searches: the first token of the prefix's range gives the first
+ * child, and the end of that child's range is where the next child starts.
+ * A prefix is abandoned as soon as no extension of it can be close enough,
+ * so only the tokens near the query are ever read.
+ */
+final class FuzzyTokenMatcher {
+
+    private final Index index;
+    private final String query;
+    private final int maxDistance;
+    private final long deadlineNanos;
+
+    private final List<Match> matches = new ArrayList<Match>();
+    private boolean timedOut = false;
+
+    private static final class Match {
+        final int entryIndex;
+        final int distance;
+        final boolean hasMainEntry;
+
+        Match(final int entryIndex, final int distance, final boolean hasMainEntry) {
+            this.entryIndex = entryIndex;
+            this.distance = distance;
+            this.hasMainEntry = hasMainEntry;
+        }
+    }
+
+    private static final Comparator<Match> CLOSEST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match m1, Match m2) {
+            if (m1.distance != m2.distance) {
+                return m1.distance < m2.distance ? -1 : 1;
+            }
+            if (m1.hasMainEntry != m2.hasMainEntry) {
+                return m1.hasMainEntry ? -1 : 1;
+            }
+            return m1.entryIndex < m2.entryIndex ? -1 : m1.entryIndex == m2.entryIndex ? 0 : 1;
+        }
+    };
+
+    private FuzzyTokenMatcher(final Index index, final String query, final int maxDistance,
+            final long maxMillis) {
+        this.index = index;
+        this.query = query;
+        this.maxDistance = maxDistance;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    }
+
+    /**
+     * @return up to maxResults entries whose normalized token is within
+     *         maxDistance edits of normalizedQuery: closest first, then main
+     *         entries first, then in index order. If maxMillis runs out, the
+     *         best of what was found so far.
+     */
+    static List<IndexEntry> find(final Index index, final String normalizedQuery,
+            final int maxDistance, final int maxResults, final long maxMillis) {
+        final FuzzyTokenMatcher matcher = new FuzzyTokenMatcher(index, normalizedQuery,
+                maxDistance, maxMillis);
+        final int[] row = new int[normalizedQuery.length() + 1];
+        for (int i = 0; i < row.length; ++i) {
+            row[i] = i;
+        }
+        matcher.walk("", row, 0, index.sortedNormalizedTokens.size());
+        if (matcher.timedOut) {
+            System.out.println("Fuzzy lookup ran out of time: " + normalizedQuery);
+        }
+
+        Collections.sort(matcher.matches, CLOSEST_FIRST);
+        final List<IndexEntry> result = new ArrayList<IndexEntry>();
+        int previous = -1;
+        for (final Match match : matcher.matches) {
+            if (result.size() == maxResults) {
+                break;
+            }
+            if (match.entryIndex != previous) {
+                result.add(index.sortedIndexEntries.get(match.entryIndex));
+            }
+            previous = match.entryIndex;
+        }
+        return result;
+    }
+
+    /**
+     * @param row the edit distances between prefix and each prefix of query.
+     * @param start the first token starting with prefix.
+     * @param end just past the last one.
+     */
+    private void walk(final String prefix, final int[] row, int start, final int end) {
+        final List<String> tokens = index.sortedNormalizedTokens;
+        while (start < end) {
+            if (System.nanoTime() > deadlineNanos) {
+                timedOut = true;
+                return;
+            }
+            final String token = tokens.get(start);
+            if (token.length() == prefix.length()) {
+                // The prefix itself is a token.
+                if (row[query.length()] <= maxDistance) {
+                    matches.add(new Match(start, row[query.length()],
+                            index.hasMainEntry(start)));
+                }
+                ++start;
+                continue;
+            }
+            final String childPrefix = token.substring(0, prefix.length() + 1);
+            final int childEnd = Math.max(start + 1,
+                    index.findEndOfPrefix(childPrefix, start, end));
+            final int[] childRow = step(row, childPrefix.charAt(prefix.length()));
+            if (min(childRow) <= maxDistance) {
+                walk(childPrefix, childRow, start, childEnd);
+            }
+            start = childEnd;
+        }
+    }
+
+    /**
+     * @return the next row of the edit distance table, after c.
+     */
+    private int[] step(final int[] row, final char c) {
+        final int[] next = new int[row.length];
+        next[0] = row[0] + 1;
+        for (int i = 1; i < row.length; ++i) {
+            final int substitute = row[i - 1] + (query.charAt(i - 1) == c ? 0 : 1);
+            next[i] = Math.min(substitute, Math.min(row[i] + 1, next[i - 1] + 1));
+        }
+        return next;
+    }
+
+    private static int min(final int[] row) {
+        int result = Integer.MAX_VALUE;
+        for (final int value : row) {
+            result = Math.min(result, value);
+        }
+        return result;
+    }
+
+}
@@ -6,12 +6,28 @@ import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntry>,
         Comparable<HtmlEntry> {
@@ -27,11 +43,11 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         lazyHtmlLoader = null;
     }
 
-    public HtmlEntry(Dictionary dictionary, RandomAccessFile raf, final int index)
+    public HtmlEntry(Dictionary dictionary, DataInput in, final int index)
             throws IOException {
-        super(dictionary, raf, index);
-        title = raf.readUTF();
-        lazyHtmlLoader = new LazyHtmlLoader(raf);
+        super(dictionary, in, index);
+        title = in.readUTF();
+        lazyHtmlLoader = new LazyHtmlLoader(dictionary, in);
         html = null;
     }
 
@@ -63,7 +79,8 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         return new Row(this.index, rowIndex, dictionaryIndex);
     }
 
-    static final class Serializer implements RAFListSerializer<HtmlEntry> {
+    static final class Serializer implements RAFListSerializer<HtmlEntry>,
+            MappedList.Reader<HtmlEntry> {
 
         final Dictionary dictionary;
 
@@ -73,7 +90,12 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
 
         @Override
         public HtmlEntry read(RandomAccessFile raf, final int index) throws IOException {
-            return new HtmlEntry(dictionary, raf, index);
+            return read((DataInput) raf, index);
+        }
+
+        @Override
+        public HtmlEntry read(DataInput in, final int index) throws IOException {
+            return new HtmlEntry(dictionary, in, index);
         }
 
         @Override
@@ -105,9 +127,9 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
 
         boolean isExpanded = false;
 
-        Row(final RandomAccessFile raf, final int thisRowIndex,
+        Row(final DataInput in, final int thisRowIndex,
                 final Index index) throws IOException {
-            super(raf, thisRowIndex, index);
+            super(in, thisRowIndex, index);
         }
 
         Row(final int referenceIndex, final int thisRowIndex,
@@ -140,21 +162,40 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         public RowMatchType matches(final List<String> searchTokens,
                 final Pattern orderedMatchPattern, final Transliterator normalizer,
                 final boolean swapPairEntries) {
-            final String text = normalizer.transform(getRawText(false));
-            if (orderedMatchPattern.matcher(text).find()) {
-                return RowMatchType.ORDERED_MATCH;
-            }
-            for (int i = searchTokens.size() - 1; i >= 0; --i) {
-                final String searchToken = searchTokens.get(i);
-                if (!text.contains(searchToken)) {
-                    return RowMatchType.NO_MATCH;
-                }
+            return HtmlEntry.matches(getEntry(), searchTokens, orderedMatchPattern, normalizer,
+                    null);
+        }
+    }
+
+    /**
+     * Row.matches() without needing the Row, for RowTable.Cursor.
+     * 
+     * @param normalizedLength if not null, gets the length of the normalized
+     *            text in [0].
+     */
+    static RowMatchType matches(final HtmlEntry entry, final List<String> searchTokens,
+            final Pattern orderedMatchPattern, final Transliterator normalizer,
+            final int[] normalizedLength) {
+        final String text = normalizer.transform(entry.getRawText(false));
+        if (normalizedLength != null) {
+            normalizedLength[0] = text.length();
+        }
+        if (orderedMatchPattern.matcher(text).find()) {
+            return RowMatchType.ORDERED_MATCH;
+        }
+        for (int i = searchTokens.size() - 1; i >= 0; --i) {
+            final String searchToken = searchTokens.get(i);
+            if (!text.contains(searchToken)) {
+                return RowMatchType.NO_MATCH;
             }
-            return RowMatchType.BAG_OF_WORDS_MATCH;
         }
+        return RowMatchType.BAG_OF_WORDS_MATCH;
     }
 
     public static String htmlBody(final List<HtmlEntry> htmlEntries, final String indexShortName) {
+        if (htmlEntries.size() > 1) {
+            loadHtml(htmlEntries);
+        }
         final StringBuilder result = new StringBuilder();
         for (final HtmlEntry htmlEntry : htmlEntries) {
             final String titleEscaped = StringUtil.escapeUnicodeToPureHtml(htmlEntry.title);
@@ -178,7 +219,9 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
     // --------------------------------------------------------------------
 
     public static final class LazyHtmlLoader {
-        final RandomAccessFile raf;
+        // Exactly one of these is set.
+        final FileChannel channel;
+        final MappedDictionaryFile mappedFile;
         final long offset;
         final int numBytes;
         final int numZipBytes;
@@ -186,12 +229,18 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
         // Not sure this volatile is right, but oh well.
         volatile SoftReference<String> htmlRef = new SoftReference<String>(null);
 
-        private LazyHtmlLoader(final RandomAccessFile raf) throws IOException {
-            this.raf = raf;
-            numBytes = raf.readInt();
-            numZipBytes = raf.readInt();
-            offset = raf.getFilePointer();
-            raf.skipBytes(numZipBytes);
+        private LazyHtmlLoader(final Dictionary dictionary, final DataInput in)
+                throws IOException {
+            this.channel = dictionary.raf != null ? dictionary.raf.getChannel() : null;
+            this.mappedFile = dictionary.mappedFile;
+            numBytes = in.readInt();
+            numZipBytes = in.readInt();
+            offset = dictionary.getFilePointer(in);
+            in.skipBytes(numZipBytes);
+        }
+
+        boolean isLoaded() {
+            return htmlRef.get() != null;
         }
 
         public String getHtml() {
@@ -201,25 +250,247 @@ public class HtmlEntry extends AbstractEntry implements RAFSerializable<HtmlEntr
             }
             System.out.println("Loading Html: numBytes=" + numBytes + ", numZipBytes="
                     + numZipBytes);
-            final byte[] bytes = new byte[numBytes];
-            final byte[] zipBytes = new byte[numZipBytes];
-            synchronized (raf) {
-                try {
-                    raf.seek(offset);
-                    raf.read(zipBytes);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
             try {
-                StringUtil.unzipFully(zipBytes, bytes);
-                html = new String(bytes, "UTF-8");
+                // Both buffers are only reused by this thread, so there's no
+                // need to lock anything.
+                final byte[] zipBytes = ZIP_BUFFER.get(numZipBytes);
+                readZipBytes(zipBytes);
+                final byte[] bytes = UNZIPPED_BUFFER.get(numBytes);
+                unzip(zipBytes, numZipBytes, bytes, numBytes);
+                html = new String(bytes, 0, numBytes, "UTF-8");
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
             htmlRef = new SoftReference<String>(html);
             return html;
         }
+
+        /**
+         * Positional reads don't touch the shared file pointer, so they can
+         * run concurrently with each other and with the RAFLists.
+         */
+        private void readZipBytes(final byte[] zipBytes) throws IOException {
+            if (mappedFile != null) {
+                mappedFile.read(offset, zipBytes, 0, numZipBytes);
+                return;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(zipBytes, 0, numZipBytes);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Html past end of file: " + offset);
+                }
+                position += read;
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------
+
+    private static final int HTML_LOADER_THREADS = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // loadHtml waits for what it submits, so past this it loads on the
+    // calling thread instead of queueing more.
+    private static final int MAX_QUEUED_LOADS = 32;
+
+    private static final ThreadPoolExecutor HTML_LOADER = newLoader("htmlLoader",
+            HTML_LOADER_THREADS, MAX_QUEUED_LOADS, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    // Rows are prefetched as they are bound, so while scrolling only the
+    // latest ones matter: the oldest waiting prefetch makes room for a new one.
+    private static final int PREFETCH_THREADS = 2;
+    private static final int MAX_QUEUED_PREFETCHES = 8;
+
+    private static final ThreadPoolExecutor HTML_PREFETCHER = newLoader("htmlPrefetcher",
+            PREFETCH_THREADS, MAX_QUEUED_PREFETCHES, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    private static ThreadPoolExecutor newLoader(final String threadName, final int threads,
+            final int maxQueued, final RejectedExecutionHandler whenFull) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, whenFull);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Starts loading the html of htmlEntries in the background, so that it is
+     * (probably) cached by the time it is displayed. Prefetches that are still
+     * waiting when newer ones pile up are dropped.
+     */
+    public static void prefetchHtml(final List<HtmlEntry> htmlEntries) {
+        for (final HtmlEntry htmlEntry : htmlEntries) {
+            final LazyHtmlLoader loader = htmlEntry.lazyHtmlLoader;
+            if (htmlEntry.html == null && loader != null && !loader.isLoaded()) {
+                HTML_PREFETCHER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // It may have been displayed while this waited.
+                        if (!loader.isLoaded()) {
+                            loader.getHtml();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Loads the html of all htmlEntries, several at a time, and waits for it.
+     */
+    static void loadHtml(final List<HtmlEntry> htmlEntries) {
+        final List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (final HtmlEntry htmlEntry : htmlEntries) {
+            final LazyHtmlLoader loader = htmlEntry.lazyHtmlLoader;
+            if (htmlEntry.html == null && loader != null && !loader.isLoaded()) {
+                futures.add(HTML_LOADER.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return loader.getHtml();
+                    }
+                }));
+            }
+        }
+        for (final Future<String> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // Fails the same way getHtml() would on the calling thread.
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------
+
+    // Bigger buffers are allocated for the one load and not kept, so an
+    // outsized entry doesn't pin its size on the thread that loaded it.
+    private static final int MAX_CACHED_BUFFER_BYTES = 256 * 1024;
+
+    private static final class BufferCache extends ThreadLocal<byte[]> {
+        byte[] get(final int minSize) {
+            if (minSize > MAX_CACHED_BUFFER_BYTES) {
+                return new byte[minSize];
+            }
+            byte[] buffer = get();
+            if (buffer == null || buffer.length < minSize) {
+                buffer = new byte[minSize];
+                set(buffer);
+            }
+            return buffer;
+        }
+    }
+
+    // Per-thread scratch buffers, grown on demand up to MAX_CACHED_BUFFER_BYTES.
+    private static final BufferCache ZIP_BUFFER = new BufferCache();
+    private static final BufferCache UNZIPPED_BUFFER = new BufferCache();
+
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(
+            HTML_LOADER_THREADS + PREFETCH_THREADS + 1);
+
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    /**
+     * Inflates the gzip member written by StringUtil.zipBytes using a pooled
+     * Inflater. Anything that doesn't look like gzip goes through
+     * StringUtil.unzipFully as before.
+     */
+    static void unzip(final byte[] zipBytes, final int numZipBytes, final byte[] bytes,
+            final int numBytes) throws IOException {
+        if (numZipBytes < 10 || zipBytes[0] != (byte) 0x1f || zipBytes[1] != (byte) 0x8b
+                || zipBytes[2] != 8) {
+            final byte[] exactZipBytes = new byte[numZipBytes];
+            System.arraycopy(zipBytes, 0, exactZipBytes, 0, numZipBytes);
+            final byte[] exactBytes = new byte[numBytes];
+            StringUtil.unzipFully(exactZipBytes, exactBytes);
+            System.arraycopy(exactBytes, 0, bytes, 0, numBytes);
+            return;
+        }
+        // The buffer may be longer than numZipBytes and hold an older entry
+        // past it, so every header field is checked against numZipBytes.
+        final int flags = zipBytes[3];
+        int pos = 10;
+        if ((flags & GZIP_FEXTRA) != 0) {
+            checkGzipHeader(pos + 2, numZipBytes);
+            pos += 2 + ((zipBytes[pos] & 0xff) | (zipBytes[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            pos = skipZeroTerminated(zipBytes, pos, numZipBytes);
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            pos = skipZeroTerminated(zipBytes, pos, numZipBytes);
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            pos += 2;
+        }
+        checkGzipHeader(pos, numZipBytes);
+
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            // The gzip trailer doubles as the extra byte that nowrap needs.
+            inflater.setInput(zipBytes, pos, numZipBytes - pos);
+            int inflated = 0;
+            while (inflated < numBytes && !inflater.finished()) {
+                final int n = inflater.inflate(bytes, inflated, numBytes - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != numBytes) {
+                throw new IOException("Html unzipped to " + inflated + " bytes, expected "
+                        + numBytes);
+            }
+        } catch (DataFormatException e) {
+            final IOException ioe = new IOException("Corrupt html");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * @return the position just past the zero that ends the field at pos.
+     */
+    private static int skipZeroTerminated(final byte[] zipBytes, int pos, final int numZipBytes)
+            throws IOException {
+        while (pos < numZipBytes && zipBytes[pos] != 0) {
+            ++pos;
+        }
+        checkGzipHeader(pos + 1, numZipBytes);
+        return pos + 1;
+    }
+
+    private static void checkGzipHeader(final int end, final int numZipBytes)
+            throws IOException {
+        if (end > numZipBytes) {
+            throw new IOException("Corrupt html: gzip header past " + numZipBytes + " bytes");
+        }
     }
 
 }
@@ -20,37 +20,37 @@ package com.hughes.android.dictionary.engine;
 
 import com.hughes.android.dictionary.DictionaryInfo;
 import com.hughes.android.dictionary.DictionaryInfo.IndexInfo;
-import com.hughes.android.dictionary.engine.RowBase.RowKey;
 import com.hughes.util.CachingList;
 import com.hughes.util.TransformingList;
 import com.hughes.util.raf.RAFList;
 import com.hughes.util.raf.RAFSerializable;
-import com.hughes.util.raf.RAFSerializer;
+import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.SerializableSerializer;
 import com.hughes.util.raf.UniformRAFList;
 import com.ibm.icu.text.Collator;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumMap;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 public final class Index implements RAFSerializable<Index> {
 
-    static final int CACHE_SIZE = 5000;
-
     public final Dictionary dict;
 
     public final String shortName; // Typically the ISO code for the language.
@@ -60,12 +60,42 @@ public final class Index implements RAFSerializable<Index> {
     public final Language sortLanguage;
     final String normalizerRules;
 
-    // Built from the two above.
-    private Transliterator normalizer;
+    // Built from the two above, which is slow. A Transliterator can't be used
+    // by two threads at once, so each search checks one out and gives it
+    // back; a few are kept for the next ones, whichever thread they run on.
+    private final ArrayDeque<Transliterator> idleNormalizers = new ArrayDeque<Transliterator>();
 
     // persisted
     public final List<IndexEntry> sortedIndexEntries;
 
+    // persisted as a token table since version 7, a view on
+    // sortedIndexEntries before that.
+    final List<String> sortedNormalizedTokens;
+
+    // persisted since version 13, front coded: the same tokens as above, which
+    // are read through it, and which IndexEntry reads its normalized token
+    // from instead of holding a copy. Insertion points only search it when
+    // the collation keys aren't usable.
+    private final TokenDictionary tokenDictionary;
+
+    // persisted since version 10: the sortLanguage collation key of each
+    // normalized token, and the version of the collator that made them.
+    private final StringTable sortedCollationKeys;
+    private final String collationKeysVersion;
+    private final boolean collationKeysUsable;
+
+    // persisted since version 11: entry i's rows (and html entries) are rows
+    // [cumulativeRowCounts[i], cumulativeRowCounts[i + 1]) of a virtual list
+    // of everything, which makes counting the rows of a range O(1).
+    private final IntTable cumulativeRowCounts;
+
+    // persisted since version 12, one PostingList per entry.
+    private final StringTable postings;
+
+    // persisted since version 14: rules out tokens and prefixes that aren't
+    // in the index without a binary search.
+    private final TokenFilter tokenFilter;
+
     // persisted.
     public final Set<String> stoplist;
 
@@ -75,6 +105,14 @@ public final class Index implements RAFSerializable<Index> {
     public final List<RowBase> rows;
     public final boolean swapPairEntries;
 
+    // The same rows without the objects, for scanning.
+    final RowTable rowTable;
+
+    // What recent queries found, by normalized query. Nothing is cached for
+    // an Index that is still being built.
+    private final QueryCache<Integer> insertionPointCache;
+    private final QueryCache<MultiWordSearchResult> searchCache;
+
     // Version 2:
     int mainTokenCount = -1;
 
@@ -90,74 +128,204 @@ public final class Index implements RAFSerializable<Index> {
         this.normalizerRules = normalizerRules;
         this.swapPairEntries = swapPairEntries;
         sortedIndexEntries = new ArrayList<IndexEntry>();
+        sortedNormalizedTokens = TransformingList.create(sortedIndexEntries,
+                INDEX_ENTRY_TO_NORMALIZED_TOKEN);
+        tokenDictionary = null;
+        sortedCollationKeys = null;
+        collationKeysVersion = null;
+        collationKeysUsable = false;
+        cumulativeRowCounts = null;
+        postings = null;
+        tokenFilter = null;
         this.stoplist = stoplist;
         rows = new ArrayList<RowBase>();
-
-        normalizer = null;
+        rowTable = new RowTable(this, rows);
+        insertionPointCache = new QueryCache<Integer>(shortName + ".insertionPoints", 0);
+        searchCache = new QueryCache<MultiWordSearchResult>(shortName + ".searches", 0);
     }
 
     /**
-     * Deferred initialization because it can be slow.
+     * Deferred initialization because it can be slow: compiles a normalizer
+     * only if all the pooled ones are in use.
+     * 
+     * @return a normalizer for the caller alone, until it is given back with
+     *         {@link #releaseNormalizer}.
      */
-    public synchronized Transliterator normalizer() {
-        if (normalizer == null) {
-            normalizer = Transliterator
-                    .createFromRules("", normalizerRules, Transliterator.FORWARD);
+    Transliterator acquireNormalizer() {
+        synchronized (idleNormalizers) {
+            final Transliterator normalizer = idleNormalizers.pollFirst();
+            if (normalizer != null) {
+                return normalizer;
+            }
+        }
+        return Transliterator.createFromRules("", normalizerRules, Transliterator.FORWARD);
+    }
+
+    void releaseNormalizer(final Transliterator normalizer) {
+        synchronized (idleNormalizers) {
+            if (idleNormalizers.size() < MAX_IDLE_NORMALIZERS) {
+                idleNormalizers.addFirst(normalizer);
+            }
         }
-        return normalizer;
     }
 
     /**
      * Note that using this comparator probably involves doing too many text
-     * normalizations.
+     * normalizations. It keeps its own normalizer, which isn't one of the
+     * pooled ones since it is never given back.
      */
     public NormalizeComparator getSortComparator() {
-        return new NormalizeComparator(normalizer(), sortLanguage.getCollator());
+        return new NormalizeComparator(Transliterator.createFromRules("", normalizerRules,
+                Transliterator.FORWARD), sortLanguage.getCollator());
     }
 
-    public Index(final Dictionary dict, final RandomAccessFile raf) throws IOException {
+    public Index(final Dictionary dict, final DataInput in) throws IOException {
         this.dict = dict;
-        shortName = raf.readUTF();
-        longName = raf.readUTF();
-        final String languageCode = raf.readUTF();
+        shortName = in.readUTF();
+        longName = in.readUTF();
+        final String languageCode = in.readUTF();
         sortLanguage = Language.lookup(languageCode);
-        normalizerRules = raf.readUTF();
-        swapPairEntries = raf.readBoolean();
+        normalizerRules = in.readUTF();
+        swapPairEntries = in.readBoolean();
         if (sortLanguage == null) {
             throw new IOException("Unsupported language: " + languageCode);
         }
         if (dict.dictFileVersion >= 2) {
-            mainTokenCount = raf.readInt();
+            mainTokenCount = in.readInt();
+        }
+        final CacheBudget cacheBudget = CacheBudget.global();
+        sortedIndexEntries = cacheBudget.cachedList(shortName + ".sortedIndexEntries",
+                dict.readList(in, indexEntrySerializer), CacheBudget.INDEX_ENTRY_SIZER);
+        if (dict.dictFileVersion >= 13) {
+            tokenDictionary = TokenDictionary.read(dict, in);
+            sortedNormalizedTokens = cacheBudget.cachedList(shortName + ".sortedNormalizedTokens",
+                    tokenDictionary, CacheBudget.STRING_SIZER);
+        } else if (dict.dictFileVersion >= 7) {
+            tokenDictionary = null;
+            sortedNormalizedTokens = cacheBudget.cachedList(shortName + ".sortedNormalizedTokens",
+                    StringTable.read(dict, in), CacheBudget.STRING_SIZER);
+        } else {
+            tokenDictionary = null;
+            sortedNormalizedTokens = TransformingList.create(sortedIndexEntries,
+                    INDEX_ENTRY_TO_NORMALIZED_TOKEN);
         }
-        sortedIndexEntries = CachingList.create(
-                RAFList.create(raf, indexEntrySerializer, raf.getFilePointer()), CACHE_SIZE);
-        if (dict.dictFileVersion >= 4) {
-            stoplist = new SerializableSerializer<Set<String>>().read(raf);
+        if (dict.dictFileVersion >= 10) {
+            collationKeysVersion = in.readUTF();
+            sortedCollationKeys = StringTable.read(dict, in);
+            // Collation keys are only comparable when they come from the same
+            // collator version: a dictionary built with another ICU falls
+            // back to Collator.compare.
+            final String collatorVersion = sortLanguage.getCollator().getVersion().toString();
+            collationKeysUsable = collatorVersion.equals(collationKeysVersion);
+            if (!collationKeysUsable) {
+                System.out.println("Collator version " + collatorVersion
+                        + " doesn't match dictionary's " + collationKeysVersion
+                        + ", not using collation keys.");
+            }
+        } else {
+            collationKeysVersion = null;
+            sortedCollationKeys = null;
+            collationKeysUsable = false;
+        }
+        if (dict.dictFileVersion >= 9) {
+            stoplist = StringTable.read(dict, in).asSortedSet();
+        } else if (dict.dictFileVersion >= 4) {
+            stoplist = dict.readSerializable(in);
         } else {
             stoplist = Collections.emptySet();
         }
-        rows = CachingList.create(
-                UniformRAFList.create(raf, new RowBase.Serializer(this), raf.getFilePointer()),
-                CACHE_SIZE);
+        final long rowsStart = dict.getFilePointer(in);
+        final List<RowBase> rafRows = dict.readUniformList(in, new RowBase.Serializer(this));
+        rows = cacheBudget.cachedList(shortName + ".rows", rafRows, CacheBudget.ROW_SIZER);
+        // Skip size and datumSize.
+        rowTable = new RowTable(this, rowsStart + 8, rafRows.size());
+        if (dict.dictFileVersion >= 11) {
+            cumulativeRowCounts = IntTable.read(dict, in);
+        } else {
+            cumulativeRowCounts = null;
+        }
+        if (dict.dictFileVersion >= 12) {
+            postings = StringTable.read(dict, in);
+        } else {
+            postings = null;
+        }
+        if (dict.dictFileVersion >= 14) {
+            tokenFilter = TokenFilter.read(dict, in);
+        } else {
+            tokenFilter = null;
+        }
+        insertionPointCache = new QueryCache<Integer>(shortName + ".insertionPoints",
+                MAX_CACHED_INSERTION_POINTS);
+        searchCache = new QueryCache<MultiWordSearchResult>(shortName + ".searches",
+                MAX_CACHED_SEARCHES);
     }
 
     @Override
     public void write(final RandomAccessFile raf) throws IOException {
-        raf.writeUTF(shortName);
-        raf.writeUTF(longName);
-        raf.writeUTF(sortLanguage.getIsoCode());
+        new Dictionary.IndexHeader(shortName, longName, sortLanguage).write(raf);
         raf.writeUTF(normalizerRules);
         raf.writeBoolean(swapPairEntries);
         if (dict.dictFileVersion >= 2) {
             raf.writeInt(mainTokenCount);
         }
         RAFList.write(raf, sortedIndexEntries, indexEntrySerializer);
-        new SerializableSerializer<Set<String>>().write(raf, stoplist);
+        if (dict.dictFileVersion >= 13) {
+            TokenDictionary.write(raf, TransformingList.create(sortedIndexEntries,
+                    INDEX_ENTRY_TO_NORMALIZED_TOKEN));
+        } else if (dict.dictFileVersion >= 7) {
+            StringTable.write(raf, TransformingList.create(sortedIndexEntries,
+                    INDEX_ENTRY_TO_NORMALIZED_TOKEN));
+        }
+        if (dict.dictFileVersion >= 10) {
+            final Collator sortCollator = sortLanguage.getCollator();
+            final List<byte[]> collationKeys = new ArrayList<byte[]>(sortedIndexEntries.size());
+            for (final IndexEntry indexEntry : sortedIndexEntries) {
+                collationKeys.add(sortCollator.getCollationKey(indexEntry.normalizedToken())
+                        .toByteArray());
+            }
+            raf.writeUTF(sortCollator.getVersion().toString());
+            StringTable.writeBytes(raf, collationKeys);
+        }
+        if (dict.dictFileVersion >= 9) {
+            StringTable.writeSortedSet(raf, stoplist);
+        } else {
+            new SerializableSerializer<Set<String>>().write(raf, stoplist);
+        }
         UniformRAFList.write(raf, rows, new RowBase.Serializer(this), 5 /*
                                                                                                * bytes
                                                                                                * per
                                                                                                * entry
                                                                                                */);
+        if (dict.dictFileVersion >= 11) {
+            final int[] counts = new int[sortedIndexEntries.size() + 1];
+            for (int i = 0; i < sortedIndexEntries.size(); ++i) {
+                final IndexEntry indexEntry = sortedIndexEntries.get(i);
+                counts[i + 1] = counts[i] + indexEntry.numRows + indexEntry.htmlEntries.size();
+            }
+            IntTable.write(raf, counts);
+        }
+        if (dict.dictFileVersion >= 12) {
+            final List<byte[]> entryPostings = new ArrayList<byte[]>(sortedIndexEntries.size());
+            for (final IndexEntry indexEntry : sortedIndexEntries) {
+                final int[] keys = new int[indexEntry.numRows];
+                int numKeys = 0;
+                for (int r = indexEntry.startRow + 1; r <= indexEntry.startRow
+                        + indexEntry.numRows; ++r) {
+                    final RowBase row = rows.get(r);
+                    final int key = PostingList.key(RowTable.getType(row), row.referenceIndex);
+                    if (key != -1) {
+                        keys[numKeys++] = key;
+                    }
+                }
+                entryPostings.add(PostingList.encode(PostingList.sortedSet(Arrays.copyOf(keys,
+                        numKeys))));
+            }
+            StringTable.writeBytes(raf, entryPostings);
+        }
+        if (dict.dictFileVersion >= 14) {
+            TokenFilter.write(raf, TransformingList.create(sortedIndexEntries,
+                    INDEX_ENTRY_TO_NORMALIZED_TOKEN));
+        }
     }
 
     public void print(final PrintStream out) {
@@ -166,22 +334,33 @@ public final class Index implements RAFSerializable<Index> {
         }
     }
 
-    private final RAFSerializer<IndexEntry> indexEntrySerializer = new RAFSerializer<IndexEntry>() {
+    private final IndexEntrySerializer indexEntrySerializer = new IndexEntrySerializer();
+
+    private final class IndexEntrySerializer implements RAFListSerializer<IndexEntry>,
+            MappedList.Reader<IndexEntry> {
+        @Override
+        public IndexEntry read(RandomAccessFile raf, int readIndex) throws IOException {
+            return read((DataInput) raf, readIndex);
+        }
+
         @Override
-        public IndexEntry read(RandomAccessFile raf) throws IOException {
-            return new IndexEntry(Index.this, raf);
+        public IndexEntry read(DataInput in, int readIndex) throws IOException {
+            return new IndexEntry(Index.this, in, readIndex);
         }
 
         @Override
         public void write(RandomAccessFile raf, IndexEntry t) throws IOException {
             t.write(raf);
         }
-    };
+    }
 
     public static final class IndexEntry implements RAFSerializable<Index.IndexEntry> {
         private final Index index;
         public final String token;
+        // null if it differs from token and is read from the index's
+        // TokenDictionary (version 13+), at position entryIndex.
         private final String normalizedToken;
+        private final int entryIndex;
         public final int startRow;
         public final int numRows; // doesn't count the token row!
         public final List<HtmlEntry> htmlEntries;
@@ -193,22 +372,32 @@ public final class Index implements RAFSerializable<Index> {
             assert token.length() > 0;
             this.token = token;
             this.normalizedToken = normalizedToken;
+            this.entryIndex = -1;
             this.startRow = startRow;
             this.numRows = numRows;
             this.htmlEntries = new ArrayList<HtmlEntry>();
         }
 
-        public IndexEntry(final Index index, final RandomAccessFile raf) throws IOException {
+        public IndexEntry(final Index index, final DataInput in, final int entryIndex)
+                throws IOException {
             this.index = index;
-            token = raf.readUTF();
-            startRow = raf.readInt();
-            numRows = raf.readInt();
-            final boolean hasNormalizedForm = raf.readBoolean();
-            normalizedToken = hasNormalizedForm ? raf.readUTF() : token;
+            this.entryIndex = entryIndex;
+            token = in.readUTF();
+            startRow = in.readInt();
+            numRows = in.readInt();
+            final boolean hasNormalizedForm = in.readBoolean();
+            if (!hasNormalizedForm) {
+                normalizedToken = token;
+            } else if (index.dict.dictFileVersion >= 13) {
+                // The TokenDictionary has it too, front coded.
+                in.skipBytes(in.readUnsignedShort());
+                normalizedToken = null;
+            } else {
+                normalizedToken = in.readUTF();
+            }
             if (index.dict.dictFileVersion >= 6) {
                 this.htmlEntries = CachingList.create(
-                        RAFList.create(raf, index.dict.htmlEntryIndexSerializer,
-                                raf.getFilePointer()), 1);
+                        index.dict.readList(in, index.dict.htmlEntryIndexSerializer), 1);
             } else {
                 this.htmlEntries = Collections.emptyList();
             }
@@ -218,6 +407,7 @@ public final class Index implements RAFSerializable<Index> {
             raf.writeUTF(token);
             raf.writeInt(startRow);
             raf.writeInt(numRows);
+            final String normalizedToken = normalizedToken();
             final boolean hasNormalizedForm = !token.equals(normalizedToken);
             raf.writeBoolean(hasNormalizedForm);
             if (hasNormalizedForm) {
@@ -231,7 +421,16 @@ public final class Index implements RAFSerializable<Index> {
         }
 
         public String normalizedToken() {
-            return normalizedToken;
+            return normalizedToken != null ? normalizedToken : index.sortedNormalizedTokens
+                    .get(entryIndex);
+        }
+
+        /**
+         * @return whether normalizedToken is held on the heap, apart from
+         *         token.
+         */
+        boolean holdsNormalizedToken() {
+            return normalizedToken != null && normalizedToken != token;
         }
     }
 
@@ -242,14 +441,181 @@ public final class Index implements RAFSerializable<Index> {
         }
     };
 
+    static final TransformingList.Transformer<IndexEntry, String> INDEX_ENTRY_TO_NORMALIZED_TOKEN = new TransformingList.Transformer<IndexEntry, String>() {
+        @Override
+        public String transform(IndexEntry t1) {
+            return t1.normalizedToken();
+        }
+    };
+
+    /**
+     * Same result as a binary search with getSortComparator(), but normalizes
+     * exactToken once instead of on every probe, and probes the normalized
+     * tokens that are already stored.
+     */
     public IndexEntry findExact(final String exactToken) {
-        final int result = Collections.binarySearch(
-                TransformingList.create(sortedIndexEntries, INDEX_ENTRY_TO_TOKEN), exactToken,
-                getSortComparator());
-        if (result >= 0) {
-            return sortedIndexEntries.get(result);
+        return findExact(exactToken, new AtomicBoolean(false));
+    }
+
+    /**
+     * @return null if not found, or if interrupted before it was.
+     */
+    public IndexEntry findExact(final String exactToken, final AtomicBoolean interrupted) {
+        final Transliterator normalizer = acquireNormalizer();
+        final String normalizedToken;
+        try {
+            normalizedToken = normalizer.transliterate(exactToken);
+        } finally {
+            releaseNormalizer(normalizer);
+        }
+        final Collator sortCollator = sortLanguage.getCollator();
+        int index = -1;
+        // Most misses are ruled out by the filter, without a binary search.
+        if (!sortedIndexEntries.isEmpty()
+                && (tokenFilter == null || tokenFilter.mightContainToken(normalizedToken))) {
+            index = findNormalizedInsertionPointIndex(normalizedToken, interrupted);
+        }
+        if (interrupted.get()) {
+            return null;
+        }
+        IndexEntry result = null;
+        if (index != -1) {
+            while (index > 0
+                    && sortCollator.compare(normalizedToken,
+                            sortedNormalizedTokens.get(index - 1)) == 0) {
+                --index;
+            }
+            // Entries with the same normalized token are sorted by token.
+            for (; index < sortedIndexEntries.size()
+                    && sortCollator.compare(normalizedToken,
+                            sortedNormalizedTokens.get(index)) == 0; ++index) {
+                final IndexEntry indexEntry = sortedIndexEntries.get(index);
+                final int comp = sortCollator.compare(exactToken, indexEntry.token);
+                if (comp == 0) {
+                    result = indexEntry;
+                    break;
+                } else if (comp < 0) {
+                    break;
+                }
+            }
+        }
+        assert sameToken(result, findExactByComparator(exactToken)) : exactToken;
+        return result;
+    }
+
+    /**
+     * The original findExact, which normalizes both sides of every comparison.
+     */
+    private IndexEntry findExactByComparator(final String exactToken) {
+        final Transliterator normalizer = acquireNormalizer();
+        try {
+            final int result = Collections.binarySearch(
+                    TransformingList.create(sortedIndexEntries, INDEX_ENTRY_TO_TOKEN),
+                    exactToken, new NormalizeComparator(normalizer, sortLanguage.getCollator()));
+            if (result >= 0) {
+                return sortedIndexEntries.get(result);
+            }
+            return null;
+        } finally {
+            releaseNormalizer(normalizer);
+        }
+    }
+
+    private boolean sameToken(final IndexEntry e1, final IndexEntry e2) {
+        if (e1 == null || e2 == null) {
+            return e1 == e2;
+        }
+        return sortLanguage.getCollator().compare(e1.token, e2.token) == 0;
+    }
+
+    /**
+     * Typo-tolerant lookup, for when a token isn't in the index: finds the
+     * entries whose normalized token is within maxDistance (1 or 2 are
+     * practical) edits of token's, without scanning the index.
+     * 
+     * @return up to maxResults entries, closest first and main entries before
+     *         others; only what was found within maxMillis.
+     */
+    public List<IndexEntry> findFuzzy(final String token, final int maxDistance,
+            final int maxResults, final long maxMillis) {
+        if (sortedIndexEntries.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return FuzzyTokenMatcher.find(this, normalizeToken(token), maxDistance, maxResults,
+                maxMillis);
+    }
+
+    /**
+     * @return the maxDistance to call findFuzzy with for token: one edit
+     *         away from a short word is already most of the index.
+     */
+    public static int fuzzyDistance(final String token) {
+        return token.length() <= 4 ? 1 : 2;
+    }
+
+    /**
+     * @return whether some token starts with prefix (once normalized), i.e.
+     *         whether the user may still be typing one rather than have
+     *         misspelled it.
+     */
+    public boolean hasTokenStartingWith(final String prefix, final AtomicBoolean interrupted) {
+        final String normalizedPrefix = normalizeToken(prefix);
+        if (tokenFilter != null && !tokenFilter.mightContainPrefix(normalizedPrefix)) {
+            return false;
         }
-        return null;
+        final int start = findNormalizedInsertionPointIndex(normalizedPrefix, interrupted);
+        return start != -1 && findEndOfPrefix(normalizedPrefix, start) > start;
+    }
+
+    /**
+     * Search suggestions: the entries starting with prefix, those with a main
+     * entry first, each group in index order. Looks at no more than
+     * MAX_SUGGEST_ENTRIES entries however many start with prefix, so a one
+     * letter prefix costs the same as a long one.
+     * 
+     * @return up to maxResults entries; only what was found within maxMillis.
+     */
+    public List<IndexEntry> suggest(final String prefix, final int maxResults,
+            final long maxMillis) {
+        if (sortedIndexEntries.isEmpty() || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        final String normalizedPrefix = normalizeToken(prefix);
+        if (tokenFilter != null && !tokenFilter.mightContainPrefix(normalizedPrefix)) {
+            return Collections.emptyList();
+        }
+        final int start = findNormalizedInsertionPointIndex(normalizedPrefix,
+                new AtomicBoolean(false));
+        final int end = Math.min(start + MAX_SUGGEST_ENTRIES,
+                findEndOfPrefix(normalizedPrefix, start));
+
+        final List<IndexEntry> main = new ArrayList<IndexEntry>();
+        final List<IndexEntry> others = new ArrayList<IndexEntry>();
+        for (int i = start; i < end && main.size() < maxResults; ++i) {
+            if (System.nanoTime() > deadlineNanos) {
+                System.out.println("Suggestions ran out of time: " + prefix);
+                break;
+            }
+            if (hasMainEntry(i)) {
+                main.add(sortedIndexEntries.get(i));
+            } else if (others.size() < maxResults) {
+                others.add(sortedIndexEntries.get(i));
+            }
+        }
+        for (int i = 0; main.size() < maxResults && i < others.size(); ++i) {
+            main.add(others.get(i));
+        }
+        return main;
+    }
+
+    /**
+     * @return whether the TokenRow of entry i is for a main entry, which only
+     *         reads the type of that row.
+     */
+    boolean hasMainEntry(final int entryIndex) {
+        return rowTable.getType(sortedIndexEntries.get(entryIndex).startRow)
+                == RowTable.TOKEN_ROW_MAIN;
     }
 
     public IndexEntry findInsertionPoint(String token, final AtomicBoolean interrupted) {
@@ -258,30 +624,76 @@ public final class Index implements RAFSerializable<Index> {
     }
 
     public int findInsertionPointIndex(String token, final AtomicBoolean interrupted) {
-        token = normalizeToken(token);
+        return findNormalizedInsertionPointIndex(normalizeToken(token), interrupted);
+    }
+
+    private int findNormalizedInsertionPointIndex(final String token,
+            final AtomicBoolean interrupted) {
+        final Integer cached = insertionPointCache.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        final int result = searchNormalizedInsertionPointIndex(token, interrupted);
+        if (result != -1 && !interrupted.get()) {
+            insertionPointCache.put(token, result);
+        }
+        return result;
+    }
 
+    private int searchNormalizedInsertionPointIndex(final String token,
+            final AtomicBoolean interrupted) {
         int start = 0;
         int end = sortedIndexEntries.size();
 
         final Collator sortCollator = sortLanguage.getCollator();
+        if (collationKeysUsable) {
+            // The collator is only needed once, for the key of token; every
+            // probe is then a byte comparison on the file.
+            final byte[] key = sortCollator.getCollationKey(token).toByteArray();
+            while (start < end) {
+                final int mid = (start + end) >>> 1;
+                if (interrupted.get()) {
+                    return -1;
+                }
+                final int comp = -sortedCollationKeys.compareBytes(mid, key);
+                if (comp == 0) {
+                    return windBackCase(token, mid, interrupted);
+                } else if (comp < 0) {
+                    end = mid;
+                } else {
+                    start = mid + 1;
+                }
+            }
+        } else if (tokenDictionary != null) {
+            // Compares the first token of each block, then inside one block.
+            start = tokenDictionary.lowerBound(token, sortCollator, interrupted);
+            if (start == -1) {
+                return -1;
+            }
+            if (start < end
+                    && sortCollator.compare(token, sortedNormalizedTokens.get(start)) == 0) {
+                return start;
+            }
+            end = start;
+        }
         while (start < end) {
             final int mid = (start + end) / 2;
             if (interrupted.get()) {
                 return -1;
             }
-            final IndexEntry midEntry = sortedIndexEntries.get(mid);
+            // Only the normalized token is needed to probe, which is cheap to
+            // read on version 7+.
+            final String midToken = sortedNormalizedTokens.get(mid);
 
-            final int comp = sortCollator.compare(token, midEntry.normalizedToken());
+            final int comp = sortCollator.compare(token, midToken);
             if (comp == 0) {
                 final int result = windBackCase(token, mid, interrupted);
                 return result;
             } else if (comp < 0) {
-                // System.out.println("Upper bound: " + midEntry + ", norm=" +
-                // midEntry.normalizedToken() + ", mid=" + mid);
+                // System.out.println("Upper bound: " + midToken + ", mid=" + mid);
                 end = mid;
             } else {
-                // System.out.println("Lower bound: " + midEntry + ", norm=" +
-                // midEntry.normalizedToken() + ", mid=" + mid);
+                // System.out.println("Lower bound: " + midToken + ", mid=" + mid);
                 start = mid + 1;
             }
         }
@@ -289,12 +701,12 @@ public final class Index implements RAFSerializable<Index> {
         // If we search for a substring of a string that's in there, return
         // that.
         int result = Math.min(start, sortedIndexEntries.size() - 1);
-        result = windBackCase(sortedIndexEntries.get(result).normalizedToken(), result, interrupted);
+        result = windBackCase(sortedNormalizedTokens.get(result), result, interrupted);
         return result;
     }
 
     private final int windBackCase(final String token, int result, final AtomicBoolean interrupted) {
-        while (result > 0 && sortedIndexEntries.get(result - 1).normalizedToken().equals(token)) {
+        while (result > 0 && sortedNormalizedTokens.get(result - 1).equals(token)) {
             --result;
             if (interrupted.get()) {
                 return result;
@@ -303,21 +715,100 @@ public final class Index implements RAFSerializable<Index> {
         return result;
     }
 
+    /**
+     * @return the row of the TokenRow that rowIndex is filed under.
+     */
+    int findTokenRow(final int rowIndex) {
+        return rowTable.findTokenRow(rowIndex);
+    }
+
+    /**
+     * See {@link Dictionary#releaseCaches}.
+     */
+    void releaseCaches() {
+        final CacheBudget cacheBudget = CacheBudget.global();
+        cacheBudget.release(sortedIndexEntries);
+        cacheBudget.release(sortedNormalizedTokens);
+        cacheBudget.release(rows);
+        insertionPointCache.clear();
+        searchCache.clear();
+    }
+
+    /**
+     * For watching how often queries are repeated.
+     */
+    public QueryCache<?> getInsertionPointCache() {
+        return insertionPointCache;
+    }
+
+    public QueryCache<?> getSearchCache() {
+        return searchCache;
+    }
+
     public IndexInfo getIndexInfo() {
         return new DictionaryInfo.IndexInfo(shortName, sortedIndexEntries.size(), mainTokenCount);
     }
 
     private static final int MAX_SEARCH_ROWS = 1000;
 
-    private final Map<String, Integer> prefixToNumRows = new LinkedHashMap<String, Integer>();
+    private static final int MAX_PREFIX_TO_NUM_ROWS = 100;
+
+    private static final int MAX_SUGGEST_ENTRIES = 1000;
+
+    private static final int MAX_CACHED_INSERTION_POINTS = 256;
+
+    private static final int MAX_CACHED_SEARCHES = 32;
 
-    private synchronized final int getUpperBoundOnRowsStartingWith(final String normalizedPrefix,
+    // Enough for a search, a suggestion and a cross-dictionary lookup at once.
+    private static final int MAX_IDLE_NORMALIZERS = 2;
+
+    // Tokens with more rows than this are cheaper to check with matches() than
+    // to collect postings for.
+    private static final int MAX_POSTING_ROWS = 20000;
+
+    // Decoding a posting is far cheaper than matching a row, but not free:
+    // tokens with many times more rows than the scan aren't worth it.
+    private static final int POSTINGS_PER_SCANNED_ROW = 16;
+
+    // Only used for dictionaries without cumulativeRowCounts.
+    private final Map<String, Integer> prefixToNumRows = new LinkedHashMap<String, Integer>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_PREFIX_TO_NUM_ROWS;
+        }
+    };
+
+    /**
+     * @return the number of rows under entries starting with normalizedPrefix
+     *         (exact on version 11+, at most a little over maxRows before), or
+     *         -1 if interrupted.
+     */
+    private final int getUpperBoundOnRowsStartingWith(final String normalizedPrefix,
             final int maxRows, final AtomicBoolean interrupted) {
-        final Integer numRows = prefixToNumRows.get(normalizedPrefix);
-        if (numRows != null) {
-            return numRows;
+        if (sortedIndexEntries.isEmpty()) {
+            return 0;
+        }
+        if (tokenFilter != null && !tokenFilter.mightContainPrefix(normalizedPrefix)) {
+            return 0;
         }
         final int insertionPointIndex = findInsertionPointIndex(normalizedPrefix, interrupted);
+        if (insertionPointIndex == -1) {
+            return -1;
+        }
+        if (cumulativeRowCounts != null) {
+            final int endIndex = findEndOfPrefix(normalizedPrefix, insertionPointIndex);
+            return cumulativeRowCounts.get(endIndex)
+                    - cumulativeRowCounts.get(insertionPointIndex);
+        }
+        synchronized (prefixToNumRows) {
+            final Integer numRows = prefixToNumRows.get(normalizedPrefix);
+            if (numRows != null) {
+                return numRows;
+            }
+        }
 
         int rowCount = 0;
         for (int index = insertionPointIndex; index < sortedIndexEntries.size(); ++index) {
@@ -325,7 +816,7 @@ public final class Index implements RAFSerializable<Index> {
                 return -1;
             }
             final IndexEntry indexEntry = sortedIndexEntries.get(index);
-            if (!indexEntry.normalizedToken.startsWith(normalizedPrefix)) {
+            if (!indexEntry.normalizedToken().startsWith(normalizedPrefix)) {
                 break;
             }
             rowCount += indexEntry.numRows + indexEntry.htmlEntries.size();
@@ -334,133 +825,563 @@ public final class Index implements RAFSerializable<Index> {
                 break;
             }
         }
-        prefixToNumRows.put(normalizedPrefix, numRows);
+        synchronized (prefixToNumRows) {
+            prefixToNumRows.put(normalizedPrefix, rowCount);
+        }
         return rowCount;
     }
 
+    /**
+     * @return the entries filed under all the entries starting with
+     *         normalizedPrefix, or null if interrupted.
+     */
+    private EntryBitmap getEntriesStartingWith(final String normalizedPrefix,
+            final AtomicBoolean interrupted) {
+        final int start = findInsertionPointIndex(normalizedPrefix, interrupted);
+        if (start == -1) {
+            return null;
+        }
+        final int end = findEndOfPrefix(normalizedPrefix, start);
+        final EntryBitmap[] bitmaps = new EntryBitmap[end - start];
+        for (int i = start; i < end; ++i) {
+            if (interrupted.get()) {
+                return null;
+            }
+            bitmaps[i - start] = EntryBitmap.of(PostingList.decode(postings.getBytes(i)));
+        }
+        return EntryBitmap.union(bitmaps, 0, bitmaps.length);
+    }
+
+    /**
+     * @return the first entry at or after start that doesn't start with
+     *         normalizedPrefix. Like the search itself, relies on the entries
+     *         with a given prefix being contiguous.
+     */
+    private int findEndOfPrefix(final String normalizedPrefix, final int start) {
+        return findEndOfPrefix(normalizedPrefix, start, sortedNormalizedTokens.size());
+    }
+
+    /**
+     * Same, looking no further than end.
+     */
+    int findEndOfPrefix(final String normalizedPrefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (sortedNormalizedTokens.get(mid).startsWith(normalizedPrefix)) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
     public final List<RowBase> multiWordSearch(
             final String searchText, final List<String> searchTokens,
             final AtomicBoolean interrupted) {
-        final long startMills = System.currentTimeMillis();
-        final List<RowBase> result = new ArrayList<RowBase>();
+        return multiWordSearch(searchText, searchTokens, interrupted, MAX_SEARCH_ROWS + 1);
+    }
 
-        final Set<String> normalizedNonStoplist = new LinkedHashSet<String>();
+    /**
+     * Like {@link #multiWordSearch(String, List, AtomicBoolean)}, but only
+     * returns the best maxResults rows: title match first, then the entries
+     * filed under all the tokens, then the ones that only contain some of
+     * them inside a word; each group ordered matches first, then bag of
+     * words matches, each shortest (normalized) first. The search stops as
+     * soon as nothing it could still find would make it into the results.
+     */
+    public final List<RowBase> multiWordSearch(
+            final String searchText, final List<String> searchTokens,
+            final AtomicBoolean interrupted, final int maxResults) {
+        final MultiWordSearchResult result = multiWordSearch(searchText, searchTokens,
+                interrupted, maxResults, null);
+        return result != null ? result.rows : null;
+    }
 
-        String bestPrefix = null;
-        int leastRows = Integer.MAX_VALUE;
-        final StringBuilder searchTokensRegex = new StringBuilder();
+    /**
+     * What a multi-word search found, so that the search for a query that
+     * extends it (as the user types) can start from there.
+     */
+    public static final class MultiWordSearchResult {
+        private final Index index;
+        private final List<String> normalizedTokens;
+        // Whether every row under the prefix it scanned was looked at.
+        private final boolean complete;
+        // Whether it came from refining a previous search.
+        private final boolean refined;
+        // Entries known not to match the query, so nor any query that
+        // extends it: the ones this search looked at and rejected, and
+        // those of the search it refined.
+        private final EntryBitmap rejectedEntries;
+
+        // Read from the index as they are asked for, so that the result
+        // itself is only a few arrays and can be cached.
+        public final List<RowBase> rows;
+
+        // What each of rows was ranked by, for merging with other indices.
+        final RowMatchType[] matchTypes;
+        final int[] normalizedLengths;
+        final boolean[] filedUnderAll;
+
+        private MultiWordSearchResult(final Index index, final List<String> normalizedTokens,
+                final boolean complete, final boolean refined,
+                final EntryBitmap rejectedEntries, final int[] rowIndices,
+                final RowMatchType[] matchTypes, final int[] normalizedLengths,
+                final boolean[] filedUnderAll) {
+            this.index = index;
+            this.normalizedTokens = new ArrayList<String>(normalizedTokens);
+            this.complete = complete;
+            this.refined = refined;
+            this.rejectedEntries = rejectedEntries;
+            this.rows = new AbstractList<RowBase>() {
+                @Override
+                public RowBase get(final int i) {
+                    return index.rows.get(rowIndices[i]);
+                }
+
+                @Override
+                public int size() {
+                    return rowIndices.length;
+                }
+            };
+            this.matchTypes = matchTypes;
+            this.normalizedLengths = normalizedLengths;
+            this.filedUnderAll = filedUnderAll;
+        }
+
+        boolean hasTitleMatch() {
+            return matchTypes.length > 0 && matchTypes[0] == RowMatchType.TITLE_MATCH;
+        }
+
+        /**
+         * @return whether an entry that doesn't match this search can't
+         *         match normalizedTokens either: each of our tokens is a
+         *         prefix of the corresponding new one, and any extra tokens
+         *         only narrow it down. Whatever prefix the new search scans,
+         *         it can then skip our rejectedEntries without reading them.
+         */
+        boolean isRefinedBy(final Index index, final List<String> normalizedTokens) {
+            if (index != this.index || normalizedTokens.size() < this.normalizedTokens.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.normalizedTokens.size(); ++i) {
+                if (!normalizedTokens.get(i).startsWith(this.normalizedTokens.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Like {@link #multiWordSearch(String, List, AtomicBoolean, int)}. If the
+     * query extends the one that gave previous (which may be null), the
+     * entries that didn't match previous are skipped without being read; the
+     * result is the same.
+     * 
+     * @return null if interrupted.
+     */
+    public final MultiWordSearchResult multiWordSearch(
+            final String searchText, final List<String> searchTokens,
+            final AtomicBoolean interrupted, final int maxResults,
+            final MultiWordSearchResult previous) {
+        final long startMills = System.currentTimeMillis();
+
+        final List<String> rawSearchTokens = new ArrayList<String>(searchTokens);
+        // Everything the result depends on: the title match is looked up by
+        // the normalized searchText, and whether a token is in the stoplist
+        // goes by its raw form.
+        final StringBuilder cacheKey = new StringBuilder();
+        cacheKey.append(maxResults).append('\0').append(normalizeToken(searchText));
         for (int i = 0; i < searchTokens.size(); ++i) {
             if (interrupted.get()) {
                 return null;
             }
-            final String searchToken = searchTokens.get(i);
             final String normalized = normalizeToken(searchTokens.get(i));
             // Normalize them all.
             searchTokens.set(i, normalized);
+            cacheKey.append(stoplist.contains(rawSearchTokens.get(i)) ? '\1' : '\0').append(
+                    normalized);
+        }
 
-            if (!stoplist.contains(searchToken)) {
-                if (normalizedNonStoplist.add(normalized)) {
+        final MultiWordSearchResult cached = searchCache.get(cacheKey.toString());
+        if (cached != null) {
+            return cached;
+        }
+        // Every row the search reads is normalized, with the same one.
+        final Transliterator normalizer = acquireNormalizer();
+        final MultiWordSearchResult result;
+        try {
+            result = multiWordSearch(searchText, rawSearchTokens, searchTokens, interrupted,
+                    maxResults, previous, normalizer, startMills);
+        } finally {
+            releaseNormalizer(normalizer);
+        }
+        // Only full searches that saw all their rows.
+        if (result != null && result.complete && !result.refined) {
+            searchCache.put(cacheKey.toString(), result);
+        }
+        return result;
+    }
+
+    /**
+     * @param searchTokens already normalized.
+     */
+    private MultiWordSearchResult multiWordSearch(final String searchText,
+            final List<String> rawSearchTokens, final List<String> searchTokens,
+            final AtomicBoolean interrupted, final int maxResults,
+            final MultiWordSearchResult previous, final Transliterator normalizer,
+            final long startMills) {
+        final StringBuilder searchTokensRegex = new StringBuilder();
+        for (final String normalized : searchTokens) {
+            if (searchTokensRegex.length() > 0) {
+                searchTokensRegex.append("[\\s]*");
+            }
+            searchTokensRegex.append(Pattern.quote(normalized));
+        }
+        final Pattern pattern = Pattern.compile(searchTokensRegex.toString());
+
+        final EntryBitmap previouslyRejected = previous != null
+                && previous.isRefinedBy(this, searchTokens) ? previous.rejectedEntries : null;
+        final MatchCollector collector = new MatchCollector(searchTokens, pattern, normalizer,
+                maxResults, previouslyRejected);
+
+        final int exactMatchIndex = findInsertionPointIndex(searchText, interrupted);
+        if (exactMatchIndex != -1) {
+            final IndexEntry exactMatch = sortedIndexEntries.get(exactMatchIndex);
+            if (pattern.matcher(exactMatch.token).find()) {
+                collector.addTitleMatch(exactMatch.startRow);
+            }
+        }
+
+        // To the number of rows starting with them.
+        final Map<String, Integer> normalizedNonStoplist = new LinkedHashMap<String, Integer>();
+
+        String bestPrefix = null;
+        int leastRows = Integer.MAX_VALUE;
+        for (int i = 0; i < searchTokens.size(); ++i) {
+            if (interrupted.get()) {
+                return null;
+            }
+            final String normalized = searchTokens.get(i);
+            if (!stoplist.contains(rawSearchTokens.get(i))) {
+                if (!normalizedNonStoplist.containsKey(normalized)) {
                     final int numRows = getUpperBoundOnRowsStartingWith(normalized,
                             MAX_SEARCH_ROWS, interrupted);
+                    normalizedNonStoplist.put(normalized, numRows);
                     if (numRows != -1 && numRows < leastRows) {
                         if (numRows == 0) {
                             // We really are done here.
-                            return Collections.emptyList();
+                            return collector.finish(true, startMills);
                         }
                         leastRows = numRows;
                         bestPrefix = normalized;
                     }
                 }
             }
-
-            if (searchTokensRegex.length() > 0) {
-                searchTokensRegex.append("[\\s]*");
-            }
-            searchTokensRegex.append(Pattern.quote(normalized));
         }
-        final Pattern pattern = Pattern.compile(searchTokensRegex.toString());
 
         if (bestPrefix == null) {
             bestPrefix = searchTokens.get(0);
             System.out.println("Everything was in the stoplist!");
         }
+
+        // The entries filed under all the other tokens are the candidates:
+        // their rows are looked at first, and rank above the rest. The rest
+        // can still match, since matches() finds a token anywhere in a row
+        // ("count" in "account"), which no posting list records, so their
+        // rows are only looked at if the candidates don't fill the results.
+        final EntryBitmap candidates = getCandidates(normalizedNonStoplist, bestPrefix,
+                leastRows, interrupted);
+        if (interrupted.get()) {
+            return null;
+        }
         System.out.println("Searching using prefix: " + bestPrefix + ", leastRows=" + leastRows
+                + ", candidates=" + (candidates != null ? candidates.cardinality() : "all")
                 + ", searchTokens=" + searchTokens);
 
-        // Place to store the things that match.
-        final Map<RowMatchType, List<RowBase>> matches = new EnumMap<RowMatchType, List<RowBase>>(
-                RowMatchType.class);
-        for (final RowMatchType rowMatchType : RowMatchType.values()) {
-            if (rowMatchType != RowMatchType.NO_MATCH) {
-                matches.put(rowMatchType, new ArrayList<RowBase>());
+        if (candidates == null) {
+            if (!scanRowsStartingWith(bestPrefix, null, previouslyRejected, true, collector,
+                    interrupted)) {
+                return null;
+            }
+        } else {
+            if (!candidates.isEmpty()) {
+                final EntryBitmap include = previouslyRejected != null ? candidates
+                        .andNot(previouslyRejected) : candidates;
+                if (!scanRowsStartingWith(bestPrefix, include, null, true, collector,
+                        interrupted)) {
+                    return null;
+                }
+            }
+            if (!collector.isFull()) {
+                final EntryBitmap exclude = previouslyRejected != null ? candidates
+                        .or(previouslyRejected) : candidates;
+                if (!scanRowsStartingWith(bestPrefix, null, exclude, false, collector,
+                        interrupted)) {
+                    return null;
+                }
+            } else {
+                collector.skippedRows = true;
             }
         }
+        return collector.finish(!collector.skippedRows, startMills);
+    }
 
-        int matchCount = 0;
-
-        final int exactMatchIndex = findInsertionPointIndex(searchText, interrupted);
-        if (exactMatchIndex != -1) {
-            final IndexEntry exactMatch = sortedIndexEntries.get(exactMatchIndex);
-            if (pattern.matcher(exactMatch.token).find()) {
-                matches.get(RowMatchType.TITLE_MATCH).add(rows.get(exactMatch.startRow));
+    /**
+     * @return the entries filed under all the tokens of normalizedNonStoplist
+     *         but bestPrefix, or null if none of them was worth narrowing the
+     *         search down by (or if interrupted).
+     */
+    private EntryBitmap getCandidates(final Map<String, Integer> normalizedNonStoplist,
+            final String bestPrefix, final int leastRows, final AtomicBoolean interrupted) {
+        if (postings == null) {
+            return null;
+        }
+        final List<Map.Entry<String, Integer>> others = new ArrayList<Map.Entry<String, Integer>>(
+                normalizedNonStoplist.entrySet());
+        // Smallest first, so the intersection shrinks fastest.
+        Collections.sort(others, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+                return e1.getValue().compareTo(e2.getValue());
+            }
+        });
+        final long maxPostingRows = Math.min(MAX_POSTING_ROWS, (long) leastRows
+                * POSTINGS_PER_SCANNED_ROW);
+        EntryBitmap candidates = null;
+        for (final Map.Entry<String, Integer> other : others) {
+            if (other.getKey().equals(bestPrefix) || other.getValue() < 0) {
+                continue;
+            }
+            if (other.getValue() > maxPostingRows) {
+                break;
+            }
+            final EntryBitmap otherEntries = getEntriesStartingWith(other.getKey(), interrupted);
+            if (otherEntries == null) {
+                return null;
+            }
+            candidates = candidates == null ? otherEntries : candidates.and(otherEntries);
+            if (candidates.isEmpty()) {
+                break;
             }
         }
+        return candidates;
+    }
 
-        final String searchToken = bestPrefix;
-        final int insertionPointIndex = findInsertionPointIndex(searchToken, interrupted);
-        final Set<RowKey> rowsAlreadySeen = new HashSet<RowBase.RowKey>();
-        for (int index = insertionPointIndex; index < sortedIndexEntries.size()
-                && matchCount < MAX_SEARCH_ROWS; ++index) {
+    /**
+     * Offers collector each entry under the entries starting with prefix
+     * once, skipping those not in include (unless it is null) and those in
+     * exclude (unless it is null) without reading them.
+     * 
+     * @return false if interrupted.
+     */
+    private boolean scanRowsStartingWith(final String prefix, final EntryBitmap include,
+            final EntryBitmap exclude, final boolean filedUnderAll,
+            final MatchCollector collector, final AtomicBoolean interrupted) {
+        final RowTable.Cursor cursor = rowTable.cursor();
+        final int insertionPointIndex = findInsertionPointIndex(prefix, interrupted);
+        if (insertionPointIndex == -1) {
+            return false;
+        }
+        for (int index = insertionPointIndex; index < sortedIndexEntries.size(); ++index) {
             if (interrupted.get()) {
-                return null;
+                return false;
+            }
+            if (collector.done || collector.matchCount >= MAX_SEARCH_ROWS) {
+                collector.skippedRows = true;
+                return true;
             }
             final IndexEntry indexEntry = sortedIndexEntries.get(index);
-            if (!indexEntry.normalizedToken.startsWith(searchToken)) {
+            if (!indexEntry.normalizedToken().startsWith(prefix)) {
                 break;
             }
 
-            // System.out.println("Searching indexEntry: " + indexEntry.token);
-
             // Extra +1 to skip token row.
             for (int rowIndex = indexEntry.startRow + 1; rowIndex < indexEntry.startRow + 1
                     + indexEntry.numRows
-                    && rowIndex < rows.size(); ++rowIndex) {
+                    && rowIndex < rows.size() && !collector.done; ++rowIndex) {
                 if (interrupted.get()) {
-                    return null;
+                    return false;
                 }
-                final RowBase row = rows.get(rowIndex);
-                final RowBase.RowKey rowKey = row.getRowKey();
-                if (rowsAlreadySeen.contains(rowKey)) {
+                // Only the row records are read until an entry is offered.
+                cursor.moveTo(rowIndex);
+                final int key = PostingList.key(cursor.type, cursor.referenceIndex);
+                if (key == -1 || (include != null && !include.contains(key))
+                        || (exclude != null && exclude.contains(key))) {
                     continue;
                 }
-                rowsAlreadySeen.add(rowKey);
-                final RowMatchType matchType = row.matches(searchTokens, pattern, normalizer(),
-                        swapPairEntries);
-                if (matchType != RowMatchType.NO_MATCH) {
-                    matches.get(matchType).add(row);
-                    ++matchCount;
+                if (collector.seen.add(cursor.type, cursor.referenceIndex)) {
+                    collector.offer(cursor, key, filedUnderAll);
                 }
             }
         }
-        // } // searchTokens
+        if (collector.done) {
+            collector.skippedRows = true;
+        }
+        return true;
+    }
 
-        // Sort them into a reasonable order.
-        final RowBase.LengthComparator lengthComparator = new RowBase.LengthComparator(
-                swapPairEntries);
-        for (final Collection<RowBase> rows : matches.values()) {
-            final List<RowBase> ordered = new ArrayList<RowBase>(rows);
-            Collections.sort(ordered, lengthComparator);
-            result.addAll(ordered);
+    /**
+     * Keeps the best maxResults matches of a search, and which entries it
+     * rejected.
+     */
+    private final class MatchCollector {
+        final List<String> searchTokens;
+        final Pattern pattern;
+        final Transliterator normalizer;
+        final int maxResults;
+        final EntryBitmap previouslyRejected;
+
+        // The best maxResults matches so far, worst on top.
+        final PriorityQueue<SearchMatch> topMatches;
+
+        // An ordered match has all of the tokens in one side, so none can be
+        // shorter than this.
+        final int minOrderedLength;
+
+        // The entries offered so far, so each is only offered once.
+        final RowTable.SeenSet seen = new RowTable.SeenSet();
+
+        int matchCount = 0;
+        int[] rejectedKeys = new int[16];
+        int numRejected = 0;
+
+        // Set once nothing still to come can make it into the results.
+        boolean done = false;
+        // Whether some rows under the prefix weren't looked at.
+        boolean skippedRows = false;
+
+        MatchCollector(final List<String> searchTokens, final Pattern pattern,
+                final Transliterator normalizer, final int maxResults,
+                final EntryBitmap previouslyRejected) {
+            this.searchTokens = searchTokens;
+            this.pattern = pattern;
+            this.normalizer = normalizer;
+            this.maxResults = maxResults;
+            this.previouslyRejected = previouslyRejected;
+            topMatches = new PriorityQueue<SearchMatch>(Math.max(1, Math.min(maxResults, 64)),
+                    Collections.reverseOrder(SearchMatch.ORDER));
+            int length = 0;
+            for (final String normalized : searchTokens) {
+                length += normalized.length();
+            }
+            minOrderedLength = length;
         }
 
-        System.out.println("searchDuration: " + (System.currentTimeMillis() - startMills));
-        return result;
+        void addTitleMatch(final int rowIndex) {
+            add(new SearchMatch(rowIndex, RowMatchType.TITLE_MATCH, 0, true, 0));
+        }
+
+        boolean isFull() {
+            return topMatches.size() >= maxResults;
+        }
+
+        /**
+         * @param filedUnderAll whether the entry is one of the candidates.
+         */
+        void offer(final RowTable.Cursor cursor, final int key, final boolean filedUnderAll) {
+            final RowMatchType matchType = cursor.matches(searchTokens, pattern, normalizer,
+                    swapPairEntries);
+            if (matchType == RowMatchType.NO_MATCH) {
+                if (numRejected == rejectedKeys.length) {
+                    rejectedKeys = Arrays.copyOf(rejectedKeys, numRejected * 2);
+                }
+                rejectedKeys[numRejected++] = key;
+                return;
+            }
+            ++matchCount;
+            add(new SearchMatch(cursor.row, matchType, cursor.normalizedLength[0], filedUnderAll,
+                    matchCount));
+            // Candidates are offered before the rest, and matches of a later
+            // row only beat this one on type or length.
+            final SearchMatch worst = topMatches.peek();
+            done = isFull() && worst.matchType.compareTo(RowMatchType.ORDERED_MATCH) <= 0
+                    && worst.normalizedLength <= minOrderedLength;
+        }
+
+        private void add(final SearchMatch match) {
+            if (topMatches.size() < maxResults) {
+                topMatches.add(match);
+            } else if (maxResults > 0 && SearchMatch.ORDER.compare(match, topMatches.peek()) < 0) {
+                topMatches.poll();
+                topMatches.add(match);
+            }
+        }
+
+        MultiWordSearchResult finish(final boolean complete, final long startMills) {
+            // Only now turn them into rows, in order.
+            final SearchMatch[] ordered = topMatches.toArray(new SearchMatch[topMatches.size()]);
+            Arrays.sort(ordered, SearchMatch.ORDER);
+            final int[] rowIndices = new int[ordered.length];
+            final RowMatchType[] matchTypes = new RowMatchType[ordered.length];
+            final int[] normalizedLengths = new int[ordered.length];
+            final boolean[] filedUnderAll = new boolean[ordered.length];
+            for (int i = 0; i < ordered.length; ++i) {
+                rowIndices[i] = ordered[i].rowIndex;
+                matchTypes[i] = ordered[i].matchType;
+                normalizedLengths[i] = ordered[i].normalizedLength;
+                filedUnderAll[i] = ordered[i].filedUnderAll;
+            }
+            EntryBitmap rejected = EntryBitmap.of(PostingList.sortedSet(Arrays.copyOf(
+                    rejectedKeys, numRejected)));
+            if (previouslyRejected != null) {
+                rejected = rejected.or(previouslyRejected);
+            }
+            System.out.println("searchDuration: " + (System.currentTimeMillis() - startMills));
+            return new MultiWordSearchResult(Index.this, searchTokens, complete,
+                    previouslyRejected != null, rejected, rowIndices, matchTypes,
+                    normalizedLengths, filedUnderAll);
+        }
+    }
+
+    /**
+     * A row that matched, with what it is ranked by worked out once.
+     */
+    private static final class SearchMatch {
+        final int rowIndex;
+        final RowMatchType matchType;
+        final int normalizedLength;
+        // Whether the entry is filed under every token, not just contains
+        // them.
+        final boolean filedUnderAll;
+        // Ties go to whatever was found first.
+        final int order;
+
+        SearchMatch(final int rowIndex, final RowMatchType matchType,
+                final int normalizedLength, final boolean filedUnderAll, final int order) {
+            this.rowIndex = rowIndex;
+            this.matchType = matchType;
+            this.normalizedLength = normalizedLength;
+            this.filedUnderAll = filedUnderAll;
+            this.order = order;
+        }
+
+        static final Comparator<SearchMatch> ORDER = new Comparator<SearchMatch>() {
+            @Override
+            public int compare(SearchMatch m1, SearchMatch m2) {
+                if (m1.filedUnderAll != m2.filedUnderAll) {
+                    return m1.filedUnderAll ? -1 : 1;
+                }
+                if (m1.matchType != m2.matchType) {
+                    return m1.matchType.compareTo(m2.matchType);
+                }
+                if (m1.normalizedLength != m2.normalizedLength) {
+                    return m1.normalizedLength < m2.normalizedLength ? -1 : 1;
+                }
+                return m1.order < m2.order ? -1 : m1.order == m2.order ? 0 : 1;
+            }
+        };
     }
 
     private String normalizeToken(final String searchToken) {
         if (TransliteratorManager.init(null)) {
-            final Transliterator normalizer = normalizer();
-            return normalizer.transliterate(searchToken);
+            final Transliterator normalizer = acquireNormalizer();
+            try {
+                return normalizer.transliterate(searchToken);
+            } finally {
+                releaseNormalizer(normalizer);
+            }
         } else {
             // Do our best since the Transliterators aren't up yet.
             return searchToken.toLowerCase();
@@ -0,0 +1,77 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * An int array that is read in place, one int at a time.
+ * <p>
+ * Layout: int size, then size ints.
+ */
+final class IntTable {
+
+    private final Dictionary dict;
+    private final int size;
+    private final long start;
+
+    private IntTable(final Dictionary dict, final int size, final long start) {
+        this.dict = dict;
+        this.size = size;
+        this.start = start;
+    }
+
+    /**
+     * Leaves in positioned just past the table.
+     */
+    static IntTable read(final Dictionary dict, final DataInput in) throws IOException {
+        final int size = in.readInt();
+        final long start = dict.getFilePointer(in);
+        in.skipBytes(size * 4);
+        return new IntTable(dict, size, start);
+    }
+
+    static void write(final RandomAccessFile raf, final int[] values) throws IOException {
+        raf.writeInt(values.length);
+        for (final int value : values) {
+            raf.writeInt(value);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("" + i + ", size=" + size);
+        }
+        final long position = start + i * 4L;
+        if (dict.mappedFile != null) {
+            return dict.mappedFile.getInt(position);
+        }
+        try {
+            synchronized (dict.raf) {
+                dict.raf.seek(position);
+                return dict.raf.readInt();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
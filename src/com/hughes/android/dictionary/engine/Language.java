@@ -44,7 +44,8 @@ public class Language {
     final String isoCode;
     final Locale locale;
 
-    private Collator collator;
+    // Frozen, so one instance can be shared by all threads.
+    private volatile Collator collator;
 
     private Language(final Locale locale, final String isoCode) {
         this.locale = locale;
@@ -62,13 +63,24 @@ public class Language {
         return isoCode;
     }
 
-    public synchronized Collator getCollator() {
-        // Don't think this is thread-safe...
-        // if (collator == null) {
-        this.collator = Collator.getInstance(locale);
-        this.collator.setStrength(Collator.IDENTICAL);
-        // }
-        return collator;
+    /**
+     * @return a shared, frozen Collator; use cloneAsThawed() to get one that
+     *         can be modified.
+     */
+    public Collator getCollator() {
+        Collator result = collator;
+        if (result == null) {
+            synchronized (this) {
+                result = collator;
+                if (result == null) {
+                    result = Collator.getInstance(locale);
+                    result.setStrength(Collator.IDENTICAL);
+                    result.freeze();
+                    collator = result;
+                }
+            }
+        }
+        return result;
     }
 
     public String getDefaultNormalizerRules() {
@@ -0,0 +1,61 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reads each element of source the first time it is asked for, and then keeps
+ * it forever. Unlike a CachingList, every element is created exactly once, even
+ * with concurrent readers, so it is safe for objects with identity (like Index).
+ */
+final class LazyList<T> extends AbstractList<T> implements RandomAccess {
+
+    private final List<T> source;
+    private final AtomicReferenceArray<T> elements;
+
+    LazyList(final List<T> source) {
+        this.source = source;
+        this.elements = new AtomicReferenceArray<T>(source.size());
+    }
+
+    @Override
+    public int size() {
+        return elements.length();
+    }
+
+    @Override
+    public T get(final int i) {
+        T result = elements.get(i);
+        if (result == null) {
+            synchronized (this) {
+                result = elements.get(i);
+                if (result == null) {
+                    result = source.get(i);
+                    elements.set(i, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    boolean isLoaded(final int i) {
+        return elements.get(i) != null;
+    }
+
+}
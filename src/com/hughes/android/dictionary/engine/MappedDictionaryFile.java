@@ -0,0 +1,255 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory-mapped view of a dictionary file.
+ * <p>
+ * There is no shared file pointer: every reader works through its own
+ * {@link Cursor} over a duplicate of the mapping, so any number of threads can
+ * decode entries at the same time without seeks, syscalls or locks.
+ */
+public final class MappedDictionaryFile implements Closeable {
+
+    private final File file;
+    private final FileInputStream in;
+    private final ByteBuffer buffer;
+
+    public MappedDictionaryFile(final File file) throws IOException {
+        this.file = file;
+        in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Dictionary too large to map: " + file + ", size=" + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long length() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return a new cursor positioned at position. Cursors are cheap, but must
+     *         not be shared between threads.
+     */
+    public Cursor cursor(final long position) {
+        final Cursor cursor = new Cursor(buffer.duplicate());
+        cursor.seek(position);
+        return cursor;
+    }
+
+    /**
+     * Positional read; safe to call from any thread.
+     */
+    public void read(final long position, final byte[] dest, final int offset, final int length)
+            throws IOException {
+        cursor(position).readFully(dest, offset, length);
+    }
+
+    // Absolute gets never touch the shared buffer's position, so these are
+    // safe to call from any thread.
+
+    public byte getByte(final long position) {
+        return buffer.get((int) position);
+    }
+
+    public int getInt(final long position) {
+        return buffer.getInt((int) position);
+    }
+
+    public long getLong(final long position) {
+        return buffer.getLong((int) position);
+    }
+
+    /**
+     * The mapping itself stays valid until it is garbage collected, so
+     * searches still winding down after close() won't crash.
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedDictionaryFile(" + file + ")";
+    }
+
+    // --------------------------------------------------------------------
+
+    /**
+     * Big-endian DataInput (same encoding as RandomAccessFile) over a private
+     * slice of the mapping.
+     */
+    public static final class Cursor implements DataInput {
+
+        private final ByteBuffer buffer;
+
+        private Cursor(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public long position() {
+            return buffer.position();
+        }
+
+        public void seek(final long position) {
+            buffer.position((int) position);
+        }
+
+        public InputStream asInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, len);
+                    return len;
+                }
+            };
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            try {
+                buffer.get(b, off, len);
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public int skipBytes(int n) {
+            n = Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            try {
+                return buffer.get();
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            try {
+                return buffer.getShort();
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return (char) readShort();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            try {
+                return buffer.getInt();
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            try {
+                return buffer.getLong();
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        @Override
+        public String readLine() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list in the RAFList or UniformRAFList on-disk layout, decoded
+ * straight out of a {@link MappedDictionaryFile}. get() is lock-free and may be
+ * called from any thread.
+ */
+abstract class MappedList<T> extends AbstractList<T> implements RandomAccess {
+
+    interface Reader<T> {
+        T read(DataInput in, int index) throws IOException;
+    }
+
+    final MappedDictionaryFile file;
+    final Reader<T> reader;
+    final int size;
+
+    private MappedList(final MappedDictionaryFile file, final Reader<T> reader, final int size) {
+        this.file = file;
+        this.reader = reader;
+        this.size = size;
+    }
+
+    /**
+     * RAFList layout: int size, then size + 1 absolute long offsets (the last
+     * one is the end of the list), then the elements.
+     */
+    static <T> MappedList<T> create(final MappedDictionaryFile file, final Reader<T> reader,
+            final long startOffset) {
+        final int size = file.getInt(startOffset);
+        final long tocOffset = startOffset + 4;
+        return new MappedList<T>(file, reader, size) {
+            @Override
+            long getOffset(int i) {
+                return file.getLong(tocOffset + i * 8L);
+            }
+
+            @Override
+            long getEndOffset() {
+                return file.getLong(tocOffset + size * 8L);
+            }
+        };
+    }
+
+    /**
+     * UniformRAFList layout: int size, int datumSize, then the fixed-size
+     * elements.
+     */
+    static <T> MappedList<T> createUniform(final MappedDictionaryFile file,
+            final Reader<T> reader, final long startOffset) {
+        final int size = file.getInt(startOffset);
+        final int datumSize = file.getInt(startOffset + 4);
+        final long dataStart = startOffset + 8;
+        return new MappedList<T>(file, reader, size) {
+            @Override
+            long getOffset(int i) {
+                return dataStart + (long) i * datumSize;
+            }
+
+            @Override
+            long getEndOffset() {
+                return dataStart + (long) size * datumSize;
+            }
+        };
+    }
+
+    abstract long getOffset(int i);
+
+    abstract long getEndOffset();
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public T get(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("" + i + ", size=" + size);
+        }
+        try {
+            return reader.read(file.cursor(getOffset(i)), i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
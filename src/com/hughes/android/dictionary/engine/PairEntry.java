@@ -18,6 +18,7 @@ import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -40,13 +41,13 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
         this.pairs.add(new Pair(lang1, lang2));
     }
 
-    public PairEntry(final Dictionary dictionary, final RandomAccessFile raf, final int index)
+    public PairEntry(final Dictionary dictionary, final DataInput in, final int index)
             throws IOException {
-        super(dictionary, raf, index);
-        final int size = raf.readInt();
+        super(dictionary, in, index);
+        final int size = in.readInt();
         pairs = new ArrayList<PairEntry.Pair>(size);
         for (int i = 0; i < size; ++i) {
-            pairs.add(new Pair(raf.readUTF(), raf.readUTF()));
+            pairs.add(new Pair(in.readUTF(), in.readUTF()));
         }
     }
 
@@ -62,7 +63,8 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
         }
     }
 
-    static final class Serializer implements RAFListSerializer<PairEntry> {
+    static final class Serializer implements RAFListSerializer<PairEntry>,
+            MappedList.Reader<PairEntry> {
 
         final Dictionary dictionary;
 
@@ -72,7 +74,12 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
 
         @Override
         public PairEntry read(RandomAccessFile raf, int index) throws IOException {
-            return new PairEntry(dictionary, raf, index);
+            return read((DataInput) raf, index);
+        }
+
+        @Override
+        public PairEntry read(DataInput in, int index) throws IOException {
+            return new PairEntry(dictionary, in, index);
         }
 
         @Override
@@ -97,9 +104,9 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
 
     public static class Row extends RowBase {
 
-        Row(final RandomAccessFile raf, final int thisRowIndex,
+        Row(final DataInput in, final int thisRowIndex,
                 final Index index) throws IOException {
-            super(raf, thisRowIndex, index);
+            super(in, thisRowIndex, index);
         }
 
         Row(final int referenceIndex, final int thisRowIndex,
@@ -135,28 +142,8 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
         public RowMatchType matches(final List<String> searchTokens,
                 final Pattern orderedMatchPattern, final Transliterator normalizer,
                 final boolean swapPairEntries) {
-            final int side = swapPairEntries ? 1 : 0;
-            final List<Pair> pairs = getEntry().pairs;
-            final String[] pairSides = new String[pairs.size()];
-            for (int i = 0; i < pairs.size(); ++i) {
-                pairSides[i] = normalizer.transform(pairs.get(i).get(side));
-            }
-            for (int i = searchTokens.size() - 1; i >= 0; --i) {
-                final String searchToken = searchTokens.get(i);
-                boolean found = false;
-                for (final String pairSide : pairSides) {
-                    found |= pairSide.contains(searchToken);
-                }
-                if (!found) {
-                    return RowMatchType.NO_MATCH;
-                }
-            }
-            for (final String pairSide : pairSides) {
-                if (orderedMatchPattern.matcher(pairSide).find()) {
-                    return RowMatchType.ORDERED_MATCH;
-                }
-            }
-            return RowMatchType.BAG_OF_WORDS_MATCH;
+            return PairEntry.matches(getEntry(), searchTokens, orderedMatchPattern, normalizer,
+                    swapPairEntries, null);
         }
 
         @Override
@@ -171,6 +158,44 @@ public class PairEntry extends AbstractEntry implements RAFSerializable<PairEntr
 
     }
 
+    /**
+     * Row.matches() without needing the Row, for RowTable.Cursor.
+     * 
+     * @param normalizedLength if not null, gets the length of the normalized
+     *            side in [0].
+     */
+    static RowMatchType matches(final PairEntry entry, final List<String> searchTokens,
+            final Pattern orderedMatchPattern, final Transliterator normalizer,
+            final boolean swapPairEntries, final int[] normalizedLength) {
+        final int side = swapPairEntries ? 1 : 0;
+        final List<Pair> pairs = entry.pairs;
+        final String[] pairSides = new String[pairs.size()];
+        int length = 0;
+        for (int i = 0; i < pairs.size(); ++i) {
+            pairSides[i] = normalizer.transform(pairs.get(i).get(side));
+            length += pairSides[i].length();
+        }
+        if (normalizedLength != null) {
+            normalizedLength[0] = length;
+        }
+        for (int i = searchTokens.size() - 1; i >= 0; --i) {
+            final String searchToken = searchTokens.get(i);
+            boolean found = false;
+            for (final String pairSide : pairSides) {
+                found |= pairSide.contains(searchToken);
+            }
+            if (!found) {
+                return RowMatchType.NO_MATCH;
+            }
+        }
+        for (final String pairSide : pairSides) {
+            if (orderedMatchPattern.matcher(pairSide).find()) {
+                return RowMatchType.ORDERED_MATCH;
+            }
+        }
+        return RowMatchType.BAG_OF_WORDS_MATCH;
+    }
+
     public String getRawText(final boolean compact) {
         if (compact) {
             return this.pairs.get(0).toStringTab();
@@ -0,0 +1,102 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Sorted sets of entries, as the posting lists of an Index (version 12+):
+ * which entries are filed under each IndexEntry.
+ * <p>
+ * The rows under two tokens are different rows even when they show the same
+ * entry, so postings hold entry keys rather than row numbers: see
+ * {@link #key}. On disk, a posting list is its keys in increasing order,
+ * delta-encoded as unsigned varints.
+ */
+final class PostingList {
+
+    private PostingList() {
+    }
+
+    // Html entries come after all the pair entries, so that consecutive pair
+    // entries have consecutive keys, which EntryBitmap stores as runs.
+    private static final int HTML_KEY_BASE = 1 << 30;
+
+    /**
+     * @return the key of the entry that a row of rowType points to, or -1 for
+     *         rows that can't match a search.
+     */
+    static int key(final byte rowType, final int referenceIndex) {
+        switch (rowType) {
+            case RowTable.PAIR_ROW:
+                return referenceIndex;
+            case RowTable.HTML_ROW:
+                return HTML_KEY_BASE | referenceIndex;
+            default:
+                return -1;
+        }
+    }
+
+    static byte[] encode(final int[] sortedKeys) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(sortedKeys.length * 2);
+        int previous = 0;
+        for (final int key : sortedKeys) {
+            int delta = key - previous;
+            previous = key;
+            while ((delta & ~0x7f) != 0) {
+                out.write((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            out.write(delta);
+        }
+        return out.toByteArray();
+    }
+
+    static int[] decode(final byte[] bytes) {
+        int[] result = new int[bytes.length];
+        int size = 0;
+        int previous = 0;
+        for (int i = 0; i < bytes.length;) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[i++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += delta;
+            result[size++] = previous;
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @return keys sorted, without duplicates.
+     */
+    static int[] sortedSet(final int[] keys) {
+        final int[] all = keys.clone();
+        Arrays.sort(all);
+        int size = 0;
+        for (int i = 0; i < all.length; ++i) {
+            if (size == 0 || all[size - 1] != all[i]) {
+                all[size++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, size);
+    }
+
+}
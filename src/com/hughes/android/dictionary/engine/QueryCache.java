@@ -0,0 +1,94 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small LRU cache of what an Index worked out for a query, keyed by the
+ * normalized query, so that repeating it (going back, rotating, following a
+ * link and returning) costs a map lookup. Values should be compact (indices
+ * and row numbers, not rows), since rows have their own cache.
+ */
+public final class QueryCache<V> {
+
+    private final String name;
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, V> lru;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    QueryCache(final String name, final int maxEntries) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        lru = new LinkedHashMap<String, V>(16, 0.75f, true /* accessOrder */) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > QueryCache.this.maxEntries) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return null on a miss.
+     */
+    synchronized V get(final String key) {
+        final V value = lru.get(key);
+        if (value == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return value;
+    }
+
+    synchronized void put(final String key, final V value) {
+        lru.put(key, value);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized void clear() {
+        evictions += lru.size();
+        lru.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s(%d/%d entries, hits=%d, misses=%d, evictions=%d)", name,
+                lru.size(), maxEntries, hits, misses, evictions);
+    }
+
+}
@@ -18,6 +18,7 @@ import com.hughes.util.IndexedObject;
 import com.hughes.util.raf.RAFListSerializer;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -41,11 +42,11 @@ public abstract class RowBase extends IndexedObject {
      */
     private TokenRow tokenRow = null;
 
-    RowBase(final RandomAccessFile raf, final int thisRowIndex, final Index index)
+    RowBase(final DataInput in, final int thisRowIndex, final Index index)
             throws IOException {
         super(thisRowIndex);
         this.index = index;
-        this.referenceIndex = raf.readInt(); // what this points to.
+        this.referenceIndex = in.readInt(); // what this points to.
     }
 
     public RowBase(final int referenceIndex, final int thisRowIndex, final Index index) {
@@ -88,37 +89,9 @@ public abstract class RowBase extends IndexedObject {
      */
     public TokenRow getTokenRow(final boolean search) {
         if (tokenRow == null && search) {
-            int r = index() - 1;
-            int rUp = index() + 1;
-            while (r >= 0) {
-                final RowBase row = index.rows.get(r);
-                final TokenRow candidate = row.getTokenRow(false);
-                if (candidate != null) {
-                    for (++r; r <= index(); ++r) {
-                        index.rows.get(r).setTokenRow(candidate);
-                    }
-                    break;
-                }
-                if (rUp < index.rows.size()) {
-                    final RowBase rowUp = index.rows.get(rUp);
-                    TokenRow candidateUp = rowUp.getTokenRow(false);
-                    if (candidateUp != null) {
-                        // Did we hit the next set of TokenRows?
-                        if (candidateUp.index() > this.index()) {
-                            final int tokenIndex = index.sortedIndexEntries
-                                    .get(candidateUp.referenceIndex - 1).startRow;
-                            candidateUp = (TokenRow) index.rows.get(tokenIndex);
-                        }
-                        for (--rUp; rUp >= index(); --rUp) {
-                            index.rows.get(rUp).setTokenRow(candidateUp);
-                        }
-                        break;
-                    }
-                    rUp++;
-                }
-                --r;
-            }
-            assert tokenRow != null;
+            // Found through index.rowTable, so the rows in between are never
+            // created.
+            tokenRow = (TokenRow) index.rows.get(index.findTokenRow(index()));
         }
         return tokenRow;
     }
@@ -138,7 +111,7 @@ public abstract class RowBase extends IndexedObject {
 
     // RowBase must manage "disk-based" polymorphism. All other polymorphism is
     // dealt with in the normal manner.
-    static class Serializer implements RAFListSerializer<RowBase> {
+    static class Serializer implements RAFListSerializer<RowBase>, MappedList.Reader<RowBase> {
 
         final Index index;
 
@@ -148,15 +121,20 @@ public abstract class RowBase extends IndexedObject {
 
         @Override
         public RowBase read(RandomAccessFile raf, final int listIndex) throws IOException {
-            final byte rowType = raf.readByte();
+            return read((DataInput) raf, listIndex);
+        }
+
+        @Override
+        public RowBase read(DataInput in, final int listIndex) throws IOException {
+            final byte rowType = in.readByte();
             if (rowType == 0) {
-                return new PairEntry.Row(raf, listIndex, index);
+                return new PairEntry.Row(in, listIndex, index);
             } else if (rowType == 1 || rowType == 3) {
-                return new TokenRow(raf, listIndex, index, /* hasMainEntry */rowType == 1);
+                return new TokenRow(in, listIndex, index, /* hasMainEntry */rowType == 1);
             } else if (rowType == 2) {
-                return new TextEntry.Row(raf, listIndex, index);
+                return new TextEntry.Row(in, listIndex, index);
             } else if (rowType == 4) {
-                return new HtmlEntry.Row(raf, listIndex, index);
+                return new HtmlEntry.Row(in, listIndex, index);
             }
             throw new RuntimeException("Invalid rowType:" + rowType);
         }
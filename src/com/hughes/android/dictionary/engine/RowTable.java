@@ -0,0 +1,225 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.ibm.icu.text.Transliterator;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The rows of an Index as primitives: the (type byte, int referenceIndex)
+ * records that RowBase.Serializer writes, read straight from the file. Code
+ * that scans lots of rows should go through a {@link Cursor} rather than
+ * Index.rows, which creates a RowBase per row.
+ */
+final class RowTable {
+
+    // Row types, as persisted.
+    static final byte PAIR_ROW = 0;
+    static final byte TOKEN_ROW_MAIN = 1;
+    static final byte TEXT_ROW = 2;
+    static final byte TOKEN_ROW_OTHER = 3;
+    static final byte HTML_ROW = 4;
+
+    private static final int BYTES_PER_ROW = 5;
+
+    private final Index index;
+    private final int size;
+
+    // On disk: where the first record starts.
+    private final long dataStart;
+
+    // In memory, while building a dictionary.
+    private final List<RowBase> rows;
+
+    /**
+     * For rows read from dict, whose records start at dataStart.
+     */
+    RowTable(final Index index, final long dataStart, final int size) {
+        this.index = index;
+        this.dataStart = dataStart;
+        this.size = size;
+        this.rows = null;
+    }
+
+    /**
+     * For an Index that only exists in memory.
+     */
+    RowTable(final Index index, final List<RowBase> rows) {
+        this.index = index;
+        this.dataStart = -1;
+        this.size = -1;
+        this.rows = rows;
+    }
+
+    int size() {
+        return rows != null ? rows.size() : size;
+    }
+
+    static byte getType(final RowBase row) {
+        if (row instanceof PairEntry.Row) {
+            return PAIR_ROW;
+        } else if (row instanceof TokenRow) {
+            return ((TokenRow) row).hasMainEntry ? TOKEN_ROW_MAIN : TOKEN_ROW_OTHER;
+        } else if (row instanceof TextEntry.Row) {
+            return TEXT_ROW;
+        } else if (row instanceof HtmlEntry.Row) {
+            return HTML_ROW;
+        }
+        throw new IllegalArgumentException("Unsupported Row type: " + row.getClass());
+    }
+
+    static boolean isTokenRow(final byte type) {
+        return type == TOKEN_ROW_MAIN || type == TOKEN_ROW_OTHER;
+    }
+
+    byte getType(final int row) {
+        if (rows != null) {
+            return getType(rows.get(row));
+        }
+        final long position = dataStart + (long) row * BYTES_PER_ROW;
+        final Dictionary dict = index.dict;
+        if (dict.mappedFile != null) {
+            return dict.mappedFile.getByte(position);
+        }
+        try {
+            synchronized (dict.raf) {
+                dict.raf.seek(position);
+                return dict.raf.readByte();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    int getReferenceIndex(final int row) {
+        if (rows != null) {
+            return rows.get(row).referenceIndex;
+        }
+        final long position = dataStart + (long) row * BYTES_PER_ROW + 1;
+        final Dictionary dict = index.dict;
+        if (dict.mappedFile != null) {
+            return dict.mappedFile.getInt(position);
+        }
+        try {
+            synchronized (dict.raf) {
+                dict.raf.seek(position);
+                return dict.raf.readInt();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the row of the TokenRow that row is filed under. Looks both up
+     *         and down, since the next TokenRow may be much closer than the
+     *         previous one.
+     */
+    int findTokenRow(final int row) {
+        if (isTokenRow(getType(row))) {
+            return row;
+        }
+        for (int r = row - 1, rUp = row + 1; r >= 0; --r, ++rUp) {
+            if (isTokenRow(getType(r))) {
+                return r;
+            }
+            if (rUp < size() && isTokenRow(getType(rUp))) {
+                // The TokenRow of the previous IndexEntry.
+                return index.sortedIndexEntries.get(getReferenceIndex(rUp) - 1).startRow;
+            }
+        }
+        throw new IllegalStateException("No TokenRow above row " + row);
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    // --------------------------------------------------------------------
+
+    /**
+     * A reusable view of one row. Not thread-safe: use one per search.
+     * Only searches use it; the rows that are shown are still the RowBases of
+     * Index.rows, one per visible row.
+     */
+    final class Cursor {
+        int row = -1;
+        byte type;
+        int referenceIndex;
+
+        // Set by matches(): the length of the normalized side it looked at.
+        final int[] normalizedLength = new int[1];
+
+        void moveTo(final int row) {
+            this.row = row;
+            if (rows != null) {
+                final RowBase rowBase = rows.get(row);
+                type = getType(rowBase);
+                referenceIndex = rowBase.referenceIndex;
+            } else {
+                type = getType(row);
+                referenceIndex = getReferenceIndex(row);
+            }
+        }
+
+        /**
+         * Same as RowBase.matches, without creating the RowBase. Also sets
+         * normalizedLength.
+         */
+        RowMatchType matches(final List<String> searchTokens, final Pattern orderedMatchPattern,
+                final Transliterator normalizer, final boolean swapPairEntries) {
+            switch (type) {
+                case PAIR_ROW:
+                    return PairEntry.matches(index.dict.pairEntries.get(referenceIndex),
+                            searchTokens, orderedMatchPattern, normalizer, swapPairEntries,
+                            normalizedLength);
+                case HTML_ROW:
+                    return HtmlEntry.matches(index.dict.htmlEntries.get(referenceIndex),
+                            searchTokens, orderedMatchPattern, normalizer, normalizedLength);
+                default:
+                    return RowMatchType.NO_MATCH;
+            }
+        }
+    }
+
+    /**
+     * Which rows a search has already looked at, keyed like RowBase.RowKey:
+     * both kinds of TokenRow count as the same class.
+     */
+    static final class SeenSet {
+        // Indexed by type, with TOKEN_ROW_OTHER folded into TOKEN_ROW_MAIN.
+        private final BitSet[] seen = new BitSet[HTML_ROW + 1];
+
+        /**
+         * @return true if (type, referenceIndex) wasn't in the set yet.
+         */
+        boolean add(final byte type, final int referenceIndex) {
+            final int key = type == TOKEN_ROW_OTHER ? TOKEN_ROW_MAIN : type;
+            if (seen[key] == null) {
+                seen[key] = new BitSet();
+            }
+            if (seen[key].get(referenceIndex)) {
+                return false;
+            }
+            seen[key].set(referenceIndex);
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A list of strings that can be probed in place: used for the normalized tokens
+ * of an Index in versions 7-12 (13+ use a TokenDictionary), for stoplists
+ * (version 9+), for postings (version 12+) and, holding raw bytes rather than
+ * UTF-8, for collation keys (version 10+).
+ * <p>
+ * Layout: int size, then size + 1 int offsets relative to the start of the
+ * heap, then the heap of UTF-8 bytes. String i is
+ * heap[offsets[i], offsets[i + 1]), so a binary search probe reads two ints and
+ * the string itself instead of deserializing a whole IndexEntry.
+ */
+final class StringTable extends AbstractList<String> implements RandomAccess {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Dictionary dict;
+    private final int size;
+    private final long offsetsStart;
+    private final long heapStart;
+
+    private StringTable(final Dictionary dict, final int size, final long offsetsStart) {
+        this.dict = dict;
+        this.size = size;
+        this.offsetsStart = offsetsStart;
+        this.heapStart = offsetsStart + (size + 1) * 4L;
+    }
+
+    /**
+     * Leaves in positioned just past the table.
+     */
+    static StringTable read(final Dictionary dict, final DataInput in)
+            throws IOException {
+        final int size = in.readInt();
+        final long offsetsStart = dict.getFilePointer(in);
+        in.skipBytes(size * 4);
+        final int heapSize = in.readInt();
+        in.skipBytes(heapSize);
+        return new StringTable(dict, size, offsetsStart);
+    }
+
+    static void write(final RandomAccessFile raf, final List<String> strings)
+            throws IOException {
+        final List<byte[]> tokenBytes = new ArrayList<byte[]>(strings.size());
+        for (final String string : strings) {
+            tokenBytes.add(string.getBytes(UTF8));
+        }
+        writeBytes(raf, tokenBytes);
+    }
+
+    /**
+     * Same layout, for byte sequences that aren't strings; read them back
+     * with {@link #getBytes} and {@link #compareBytes(int, byte[])}.
+     */
+    static void writeBytes(final RandomAccessFile raf, final List<byte[]> byteArrays)
+            throws IOException {
+        raf.writeInt(byteArrays.size());
+        int heapOffset = 0;
+        for (final byte[] bytes : byteArrays) {
+            raf.writeInt(heapOffset);
+            heapOffset += bytes.length;
+        }
+        raf.writeInt(heapOffset);
+        for (final byte[] bytes : byteArrays) {
+            raf.write(bytes);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(final int i) {
+        return new String(getBytes(i), UTF8);
+    }
+
+    /**
+     * @return the raw UTF-8 bytes of string i.
+     */
+    byte[] getBytes(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("" + i + ", size=" + size);
+        }
+        try {
+            final int start = getHeapOffset(i);
+            final byte[] bytes = new byte[getHeapOffset(i + 1) - start];
+            if (dict.mappedFile != null) {
+                dict.mappedFile.read(heapStart + start, bytes, 0, bytes.length);
+            } else {
+                synchronized (dict.raf) {
+                    dict.raf.seek(heapStart + start);
+                    dict.raf.readFully(bytes);
+                }
+            }
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compares string i to key as unsigned UTF-8 bytes; doesn't allocate
+     * anything on the mapped backend.
+     */
+    int compareBytes(final int i, final byte[] key) {
+        if (dict.mappedFile == null) {
+            return compareBytes(getBytes(i), key);
+        }
+        try {
+            final int start = getHeapOffset(i);
+            final int length = getHeapOffset(i + 1) - start;
+            final int n = Math.min(length, key.length);
+            for (int j = 0; j < n; ++j) {
+                final int c = (dict.mappedFile.getByte(heapStart + start + j) & 0xff)
+                        - (key[j] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return length - key.length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static int compareBytes(final byte[] a, final byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int j = 0; j < n; ++j) {
+            final int c = (a[j] & 0xff) - (b[j] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    static final Comparator<String> UTF8_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String s1, String s2) {
+            return compareBytes(s1.getBytes(UTF8), s2.getBytes(UTF8));
+        }
+    };
+
+    /**
+     * Writes strings as a set that {@link #asSortedSet()} can probe.
+     */
+    static void writeSortedSet(final RandomAccessFile raf, final Collection<String> strings)
+            throws IOException {
+        final List<String> sorted = new ArrayList<String>(new LinkedHashSet<String>(strings));
+        Collections.sort(sorted, UTF8_ORDER);
+        write(raf, sorted);
+    }
+
+    /**
+     * Only valid for tables written by {@link #writeSortedSet}. contains() is a
+     * binary search over the table, so nothing gets deserialized.
+     */
+    Set<String> asSortedSet() {
+        return new AbstractSet<String>() {
+            @Override
+            public boolean contains(final Object o) {
+                if (!(o instanceof String)) {
+                    return false;
+                }
+                final byte[] key = ((String) o).getBytes(UTF8);
+                int start = 0;
+                int end = size;
+                while (start < end) {
+                    final int mid = (start + end) >>> 1;
+                    final int comp = compareBytes(mid, key);
+                    if (comp == 0) {
+                        return true;
+                    } else if (comp > 0) {
+                        end = mid;
+                    } else {
+                        start = mid + 1;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                return StringTable.this.iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private int getHeapOffset(final int i) throws IOException {
+        final long position = offsetsStart + i * 4L;
+        if (dict.mappedFile != null) {
+            return dict.mappedFile.getInt(position);
+        }
+        synchronized (dict.raf) {
+            dict.raf.seek(position);
+            return dict.raf.readInt();
+        }
+    }
+
+}
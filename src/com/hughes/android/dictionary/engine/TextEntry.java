@@ -18,6 +18,7 @@ import com.hughes.util.raf.RAFListSerializer;
 import com.hughes.util.raf.RAFSerializable;
 import com.ibm.icu.text.Transliterator;
 
+import java.io.DataInput;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
@@ -28,10 +29,10 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
 
     final String text;
 
-    public TextEntry(final Dictionary dictionary, final RandomAccessFile raf, final int index)
+    public TextEntry(final Dictionary dictionary, final DataInput in, final int index)
             throws IOException {
-        super(dictionary, raf, index);
-        text = raf.readUTF();
+        super(dictionary, in, index);
+        text = in.readUTF();
         throw new RuntimeException();
     }
 
@@ -41,7 +42,8 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
         raf.writeUTF(text);
     }
 
-    static final class Serializer implements RAFListSerializer<TextEntry> {
+    static final class Serializer implements RAFListSerializer<TextEntry>,
+            MappedList.Reader<TextEntry> {
 
         final Dictionary dictionary;
 
@@ -51,7 +53,12 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
 
         @Override
         public TextEntry read(RandomAccessFile raf, final int index) throws IOException {
-            return new TextEntry(dictionary, raf, index);
+            return read((DataInput) raf, index);
+        }
+
+        @Override
+        public TextEntry read(DataInput in, final int index) throws IOException {
+            return new TextEntry(dictionary, in, index);
         }
 
         @Override
@@ -74,9 +81,9 @@ public class TextEntry extends AbstractEntry implements RAFSerializable<TextEntr
 
     public static class Row extends RowBase {
 
-        Row(final RandomAccessFile raf, final int thisRowIndex,
+        Row(final DataInput in, final int thisRowIndex,
                 final Index index) throws IOException {
-            super(raf, thisRowIndex, index);
+            super(in, thisRowIndex, index);
         }
 
         public TextEntry getEntry() {
@@ -0,0 +1,236 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.ibm.icu.text.Collator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The normalized tokens of an Index (version 13+), front coded: replaces the
+ * StringTable of version 7-12 at a fraction of its size, since neighbouring
+ * tokens mostly share long prefixes.
+ * <p>
+ * Tokens are stored in blocks of {@link #BLOCK_SIZE}. The first token of a
+ * block is stored whole; each other token as the number of leading UTF-8 bytes
+ * it shares with the one before it, then the rest of its bytes, all lengths
+ * as unsigned varints. Layout: int size, int numBlocks, numBlocks + 1 int
+ * offsets relative to the start of the heap, then the heap. Token i is found
+ * by reading block i / BLOCK_SIZE and decoding up to it, and a search binary
+ * searches the first tokens of the blocks before looking inside one.
+ * <p>
+ * An IndexEntry whose normalized token differs from its token doesn't hold
+ * a copy, but reads it from here when asked, so only tokens that were
+ * recently decoded are on the heap. IndexEntry still writes its copy to the
+ * file, as before version 13, and skips it when reading. Searches only use
+ * {@link #lowerBound} when the collation keys can't be used.
+ */
+final class TokenDictionary extends AbstractList<String> implements RandomAccess {
+
+    static final int BLOCK_SIZE = 16;
+
+    private final Dictionary dict;
+    private final int size;
+    private final int numBlocks;
+    private final long offsetsStart;
+    private final long heapStart;
+
+    private TokenDictionary(final Dictionary dict, final int size, final int numBlocks,
+            final long offsetsStart) {
+        this.dict = dict;
+        this.size = size;
+        this.numBlocks = numBlocks;
+        this.offsetsStart = offsetsStart;
+        this.heapStart = offsetsStart + (numBlocks + 1) * 4L;
+    }
+
+    /**
+     * Leaves in positioned just past the table.
+     */
+    static TokenDictionary read(final Dictionary dict, final DataInput in) throws IOException {
+        final int size = in.readInt();
+        final int numBlocks = in.readInt();
+        final long offsetsStart = dict.getFilePointer(in);
+        in.skipBytes(numBlocks * 4);
+        final int heapSize = in.readInt();
+        in.skipBytes(heapSize);
+        return new TokenDictionary(dict, size, numBlocks, offsetsStart);
+    }
+
+    /**
+     * @param tokens in the order they are to be looked up in.
+     */
+    static void write(final RandomAccessFile raf, final List<String> tokens) throws IOException {
+        final int numBlocks = (tokens.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        final int[] offsets = new int[numBlocks + 1];
+        byte[] previous = null;
+        for (int i = 0; i < tokens.size(); ++i) {
+            if (i % BLOCK_SIZE == 0) {
+                offsets[i / BLOCK_SIZE] = heap.size();
+                previous = null;
+            }
+            final byte[] bytes = tokens.get(i).getBytes(StringTable.UTF8);
+            int shared = 0;
+            if (previous != null) {
+                final int n = Math.min(previous.length, bytes.length);
+                while (shared < n && previous[shared] == bytes[shared]) {
+                    ++shared;
+                }
+                writeVarint(heap, shared);
+            }
+            writeVarint(heap, bytes.length - shared);
+            heap.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+        offsets[numBlocks] = heap.size();
+
+        raf.writeInt(tokens.size());
+        raf.writeInt(numBlocks);
+        for (final int offset : offsets) {
+            raf.writeInt(offset);
+        }
+        raf.write(heap.toByteArray());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("" + i + ", size=" + size);
+        }
+        return decode(readBlock(i / BLOCK_SIZE), i % BLOCK_SIZE);
+    }
+
+    /**
+     * @return the first i with collator.compare(token, get(i)) <= 0, or -1 if
+     *         interrupted. Only the first token of each block is compared
+     *         until the block is known.
+     */
+    int lowerBound(final String token, final Collator collator, final AtomicBoolean interrupted) {
+        // The last block whose first token is < token, if any.
+        int start = 0;
+        int end = numBlocks;
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (interrupted.get()) {
+                return -1;
+            }
+            if (collator.compare(token, decode(readBlock(mid), 0)) > 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        if (start == 0) {
+            return 0;
+        }
+        final int block = start - 1;
+        final byte[] bytes = readBlock(block);
+        final int blockSize = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+        final String[] blockTokens = decodeAll(bytes, blockSize);
+        for (int i = 1; i < blockSize; ++i) {
+            if (collator.compare(token, blockTokens[i]) <= 0) {
+                return block * BLOCK_SIZE + i;
+            }
+        }
+        return Math.min(start * BLOCK_SIZE, size);
+    }
+
+    private byte[] readBlock(final int block) {
+        try {
+            final int start = getHeapOffset(block);
+            final byte[] bytes = new byte[getHeapOffset(block + 1) - start];
+            if (dict.mappedFile != null) {
+                dict.mappedFile.read(heapStart + start, bytes, 0, bytes.length);
+            } else {
+                synchronized (dict.raf) {
+                    dict.raf.seek(heapStart + start);
+                    dict.raf.readFully(bytes);
+                }
+            }
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(final byte[] block, final int n) {
+        return decodeAll(block, n + 1)[n];
+    }
+
+    /**
+     * @return the first count tokens of block.
+     */
+    private static String[] decodeAll(final byte[] block, final int count) {
+        final String[] result = new String[count];
+        final int[] position = new int[1];
+        byte[] token = new byte[0];
+        for (int i = 0; i < count; ++i) {
+            final int shared = i == 0 ? 0 : readVarint(block, position);
+            final int suffixLength = readVarint(block, position);
+            final byte[] next = new byte[shared + suffixLength];
+            System.arraycopy(token, 0, next, 0, shared);
+            System.arraycopy(block, position[0], next, shared, suffixLength);
+            position[0] += suffixLength;
+            token = next;
+            result[i] = new String(token, StringTable.UTF8);
+        }
+        return result;
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(final byte[] bytes, final int[] position) {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    private int getHeapOffset(final int block) throws IOException {
+        final long position = offsetsStart + block * 4L;
+        if (dict.mappedFile != null) {
+            return dict.mappedFile.getInt(position);
+        }
+        synchronized (dict.raf) {
+            dict.raf.seek(position);
+            return dict.raf.readInt();
+        }
+    }
+
+}
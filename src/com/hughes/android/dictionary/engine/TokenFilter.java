@@ -0,0 +1,168 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Bloom filter over the normalized tokens of an Index (version 14+) and
+ * their first {@link #PREFIX_LENGTH} characters, read in place: a lookup
+ * that it rules out never touches the index entries.
+ * <p>
+ * Tokens are added as they compare under the sort collator, which is
+ * IDENTICAL strength, so canonically equivalent spellings are one key.
+ * Prefixes are added as they are, since prefix searches use
+ * String.startsWith. Layout: int numHashes, int numBytes, then the bits.
+ */
+final class TokenFilter {
+
+    static final int PREFIX_LENGTH = 3;
+
+    // About a 1% false positive rate.
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+
+    private static final char TOKEN_KEY = '=';
+    private static final char PREFIX_KEY = '<';
+
+    private final Dictionary dict;
+    private final int numHashes;
+    private final long numBits;
+    private final long start;
+
+    private TokenFilter(final Dictionary dict, final int numHashes, final int numBytes,
+            final long start) {
+        this.dict = dict;
+        this.numHashes = numHashes;
+        this.numBits = numBytes * 8L;
+        this.start = start;
+    }
+
+    /**
+     * Leaves in positioned just past the filter.
+     */
+    static TokenFilter read(final Dictionary dict, final DataInput in) throws IOException {
+        final int numHashes = in.readInt();
+        final int numBytes = in.readInt();
+        final long start = dict.getFilePointer(in);
+        in.skipBytes(numBytes);
+        return new TokenFilter(dict, numHashes, numBytes, start);
+    }
+
+    static void write(final RandomAccessFile raf, final List<String> normalizedTokens)
+            throws IOException {
+        final Set<String> keys = new LinkedHashSet<String>();
+        for (final String token : normalizedTokens) {
+            keys.add(TOKEN_KEY + canonical(token));
+            for (int length = 1; length <= Math.min(PREFIX_LENGTH, token.length()); ++length) {
+                keys.add(PREFIX_KEY + token.substring(0, length));
+            }
+        }
+        final int numBytes = Math.max(8, (keys.size() * BITS_PER_KEY + 7) / 8);
+        final byte[] bits = new byte[numBytes];
+        final long numBits = numBytes * 8L;
+        for (final String key : keys) {
+            final long hash = hash(key);
+            for (int i = 0; i < NUM_HASHES; ++i) {
+                final long bit = bitIndex(hash, i, numBits);
+                bits[(int) (bit >>> 3)] |= 1 << (bit & 7);
+            }
+        }
+        raf.writeInt(NUM_HASHES);
+        raf.writeInt(numBytes);
+        raf.write(bits);
+    }
+
+    /**
+     * @return false only if no token compares equal to normalizedToken.
+     */
+    boolean mightContainToken(final String normalizedToken) {
+        return mightContain(TOKEN_KEY + canonical(normalizedToken));
+    }
+
+    /**
+     * @return false only if no token starts with normalizedPrefix.
+     */
+    boolean mightContainPrefix(final String normalizedPrefix) {
+        if (normalizedPrefix.length() == 0) {
+            return true;
+        }
+        return mightContain(PREFIX_KEY
+                + normalizedPrefix.substring(0, Math.min(PREFIX_LENGTH,
+                        normalizedPrefix.length())));
+    }
+
+    private boolean mightContain(final String key) {
+        final long hash = hash(key);
+        for (int i = 0; i < numHashes; ++i) {
+            final long bit = bitIndex(hash, i, numBits);
+            if ((getByte(start + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte getByte(final long position) {
+        if (dict.mappedFile != null) {
+            return dict.mappedFile.getByte(position);
+        }
+        try {
+            synchronized (dict.raf) {
+                dict.raf.seek(position);
+                return dict.raf.readByte();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String canonical(final String token) {
+        return Normalizer.normalize(token, Normalizer.Form.NFC);
+    }
+
+    /**
+     * 64-bit FNV-1a over the chars, then a final mix so both halves are
+     * usable as independent hashes.
+     */
+    private static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The i-th of the numHashes bits, by double hashing.
+     */
+    private static long bitIndex(final long hash, final int i, final long numBits) {
+        final long combined = (hash & 0xffffffffL) + i * (hash >>> 32);
+        return (combined & Long.MAX_VALUE) % numBits;
+    }
+
+}
@@ -22,23 +22,29 @@ import java.util.List;
 public class TransliteratorManager {
 
     private static boolean starting = false;
-    private static boolean ready = false;
+    // Read without the lock by every normalizeToken() call.
+    private static volatile boolean ready = false;
 
     // Whom to notify when we're all set up and ready to go.
     private static List<Callback> callbacks = new ArrayList<TransliteratorManager.Callback>();
 
-    public static synchronized boolean init(final Callback callback) {
+    public static boolean init(final Callback callback) {
         if (ready) {
             return true;
         }
-        if (callback != null) {
-            callbacks.add(callback);
-        }
-        if (!starting) {
-            starting = true;
-            new Thread(init).start();
+        synchronized (TransliteratorManager.class) {
+            if (ready) {
+                return true;
+            }
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+            if (!starting) {
+                starting = true;
+                new Thread(init).start();
+            }
+            return false;
         }
-        return false;
     }
 
     private static final Runnable init = new Runnable() {
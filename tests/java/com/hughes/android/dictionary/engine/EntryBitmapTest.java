@@ -0,0 +1,173 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class EntryBitmapTest extends TestCase {
+
+    // Spans several containers, so some groups are missing from one side.
+    private static final int MAX_KEY = 5 << 16;
+
+    public void testOf() {
+        final SortedSet<Integer> keys = randomSet(new Random(0), 0.01, 0.5);
+        final EntryBitmap bitmap = EntryBitmap.of(toArray(keys));
+        assertSameSet(keys, bitmap);
+        assertFalse(bitmap.contains(-1));
+
+        final EntryBitmap empty = EntryBitmap.of(new int[0]);
+        assertTrue(empty.isEmpty());
+        assertEquals(0, empty.cardinality());
+        assertFalse(empty.contains(0));
+    }
+
+    public void testAnd() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 8; ++i) {
+            final SortedSet<Integer> keys1 = randomSet(random, 0.001, 0.3);
+            final SortedSet<Integer> keys2 = randomSet(random, 0.05, 0.9);
+            final SortedSet<Integer> expected = new TreeSet<Integer>(keys1);
+            expected.retainAll(keys2);
+            final EntryBitmap bitmap1 = EntryBitmap.of(toArray(keys1));
+            final EntryBitmap bitmap2 = EntryBitmap.of(toArray(keys2));
+            assertSameSet(expected, bitmap1.and(bitmap2));
+            assertSameSet(expected, bitmap2.and(bitmap1));
+        }
+    }
+
+    public void testAndDisjoint() {
+        final EntryBitmap evens = EntryBitmap.of(new int[] { 0, 2, 4, 6, 1 << 16 });
+        final EntryBitmap odds = EntryBitmap.of(new int[] { 1, 3, 5, 7, 2 << 16 });
+        assertTrue(evens.and(odds).isEmpty());
+    }
+
+    public void testOr() {
+        final Random random = new Random(2);
+        for (int i = 0; i < 8; ++i) {
+            final SortedSet<Integer> keys1 = randomSet(random, 0.001, 0.3);
+            final SortedSet<Integer> keys2 = randomSet(random, 0.05, 0.9);
+            final SortedSet<Integer> expected = new TreeSet<Integer>(keys1);
+            expected.addAll(keys2);
+            final EntryBitmap bitmap1 = EntryBitmap.of(toArray(keys1));
+            final EntryBitmap bitmap2 = EntryBitmap.of(toArray(keys2));
+            assertSameSet(expected, bitmap1.or(bitmap2));
+            assertSameSet(expected, bitmap2.or(bitmap1));
+        }
+    }
+
+    public void testAndNot() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 8; ++i) {
+            final SortedSet<Integer> keys1 = randomSet(random, 0.05, 0.9);
+            final SortedSet<Integer> keys2 = randomSet(random, 0.001, 0.3);
+            final EntryBitmap bitmap1 = EntryBitmap.of(toArray(keys1));
+            final EntryBitmap bitmap2 = EntryBitmap.of(toArray(keys2));
+            final SortedSet<Integer> expected = new TreeSet<Integer>(keys1);
+            expected.removeAll(keys2);
+            assertSameSet(expected, bitmap1.andNot(bitmap2));
+            expected.clear();
+            expected.addAll(keys2);
+            expected.removeAll(keys1);
+            assertSameSet(expected, bitmap2.andNot(bitmap1));
+        }
+    }
+
+    public void testUnion() {
+        final Random random = new Random(4);
+        final EntryBitmap[] bitmaps = new EntryBitmap[7];
+        final SortedSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < bitmaps.length; ++i) {
+            final SortedSet<Integer> keys = randomSet(random, 0.001, 0.2);
+            bitmaps[i] = EntryBitmap.of(toArray(keys));
+            if (i >= 2 && i < 6) {
+                expected.addAll(keys);
+            }
+        }
+        assertSameSet(expected, EntryBitmap.union(bitmaps, 2, 6));
+    }
+
+    public void testRuns() {
+        // Long runs, which are stored as runs, combined with scattered keys.
+        final SortedSet<Integer> runs = new TreeSet<Integer>();
+        for (int start = 100; start < MAX_KEY; start += 20000) {
+            for (int key = start; key < start + 5000; ++key) {
+                runs.add(key);
+            }
+        }
+        final SortedSet<Integer> scattered = randomSet(new Random(5), 0.01, 0.01);
+        final EntryBitmap runsBitmap = EntryBitmap.of(toArray(runs));
+        final EntryBitmap scatteredBitmap = EntryBitmap.of(toArray(scattered));
+        assertSameSet(runs, runsBitmap);
+
+        final SortedSet<Integer> expected = new TreeSet<Integer>(runs);
+        expected.retainAll(scattered);
+        assertSameSet(expected, runsBitmap.and(scatteredBitmap));
+        expected.clear();
+        expected.addAll(runs);
+        expected.addAll(scattered);
+        assertSameSet(expected, runsBitmap.or(scatteredBitmap));
+        expected.clear();
+        expected.addAll(runs);
+        expected.removeAll(scattered);
+        assertSameSet(expected, runsBitmap.andNot(scatteredBitmap));
+        expected.clear();
+        expected.addAll(scattered);
+        expected.removeAll(runs);
+        assertSameSet(expected, scatteredBitmap.andNot(runsBitmap));
+    }
+
+    /**
+     * Each group of 65536 keys gets its own density between minDensity and
+     * maxDensity, so both sparse and dense containers come up.
+     */
+    private static SortedSet<Integer> randomSet(final Random random, final double minDensity,
+            final double maxDensity) {
+        final SortedSet<Integer> result = new TreeSet<Integer>();
+        for (int high = 0; high < MAX_KEY >>> 16; ++high) {
+            if (random.nextInt(5) == 0) {
+                continue;
+            }
+            final double density = minDensity + random.nextDouble() * (maxDensity - minDensity);
+            for (int low = 0; low < 1 << 16; ++low) {
+                if (random.nextDouble() < density) {
+                    result.add((high << 16) | low);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int[] toArray(final SortedSet<Integer> keys) {
+        final int[] result = new int[keys.size()];
+        int i = 0;
+        for (final int key : keys) {
+            result[i++] = key;
+        }
+        return result;
+    }
+
+    private static void assertSameSet(final SortedSet<Integer> expected, final EntryBitmap actual) {
+        assertEquals(expected.size(), actual.cardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        for (int key = 0; key < MAX_KEY; ++key) {
+            assertEquals("key " + key, expected.contains(key), actual.contains(key));
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import com.hughes.android.dictionary.engine.Index.IndexEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class FuzzyTokenMatcherTest extends TestCase {
+
+    // What the suggestions get per keystroke.
+    private static final long MAX_MILLIS = 100;
+
+    private Index index;
+    private List<String> tokens;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Random random = new Random(0);
+        final TreeSet<String> sorted = new TreeSet<String>();
+        while (sorted.size() < 20000) {
+            sorted.add(randomWord(random));
+        }
+        tokens = new ArrayList<String>(sorted);
+        index = new Index(new Dictionary("FuzzyTokenMatcherTest"), "EN", "English",
+                Language.en, "", false, Collections.<String> emptySet());
+        for (final String token : tokens) {
+            final int startRow = index.rows.size();
+            index.rows.add(new TokenRow(index.sortedIndexEntries.size(), startRow, index, true));
+            index.sortedIndexEntries.add(new IndexEntry(index, token, token, startRow, 0));
+        }
+    }
+
+    public void testExact() {
+        final String token = tokens.get(1234);
+        final List<IndexEntry> result = FuzzyTokenMatcher.find(index, token, 0, 10, MAX_MILLIS);
+        assertEquals(1, result.size());
+        assertEquals(token, result.get(0).token);
+    }
+
+    public void testOneEdit() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 200; ++i) {
+            final String token = tokens.get(random.nextInt(tokens.size()));
+            final String misspelled = edit(random, token);
+            assertFound(token, misspelled, 1);
+        }
+    }
+
+    public void testTwoEdits() {
+        final Random random = new Random(2);
+        for (int i = 0; i < 200; ++i) {
+            final String token = tokens.get(random.nextInt(tokens.size()));
+            final String misspelled = edit(random, edit(random, token));
+            assertFound(token, misspelled, 2);
+        }
+    }
+
+    public void testClosestFirst() {
+        final String token = tokens.get(4321);
+        final List<IndexEntry> result = FuzzyTokenMatcher.find(index, token + "q", 2, 100,
+                MAX_MILLIS);
+        assertFalse(result.isEmpty());
+        assertEquals(token, result.get(0).token);
+    }
+
+    public void testTooFar() {
+        // Longer than any token by more than two.
+        final List<IndexEntry> result = FuzzyTokenMatcher.find(index, "aaaaaaaaaaaaaaa", 2, 10,
+                MAX_MILLIS);
+        assertTrue(result.isEmpty());
+    }
+
+    /**
+     * Asserts that token is among the results for misspelled, which are all
+     * within maxDistance, and found before the deadline (find only returns
+     * what it found by then).
+     */
+    private void assertFound(final String token, final String misspelled, final int maxDistance) {
+        final List<IndexEntry> result = FuzzyTokenMatcher.find(index, misspelled, maxDistance,
+                Integer.MAX_VALUE, MAX_MILLIS);
+        boolean found = false;
+        for (final IndexEntry entry : result) {
+            assertTrue(entry.token + " vs " + misspelled,
+                    distance(entry.token, misspelled) <= maxDistance);
+            found |= entry.token.equals(token);
+        }
+        assertTrue(misspelled + " should find " + token, found);
+    }
+
+    /**
+     * A random substitution, insertion or deletion.
+     */
+    private static String edit(final Random random, final String token) {
+        final int i = random.nextInt(token.length());
+        final char c = (char) ('a' + random.nextInt(26));
+        switch (token.length() > 1 ? random.nextInt(3) : random.nextInt(2)) {
+        case 0:
+            return token.substring(0, i) + c + token.substring(i + 1);
+        case 1:
+            return token.substring(0, i) + c + token.substring(i);
+        default:
+            return token.substring(0, i) + token.substring(i + 1);
+        }
+    }
+
+    private static int distance(final String s1, final String s2) {
+        int[] row = new int[s2.length() + 1];
+        for (int j = 0; j < row.length; ++j) {
+            row[j] = j;
+        }
+        for (int i = 1; i <= s1.length(); ++i) {
+            final int[] next = new int[row.length];
+            next[0] = i;
+            for (int j = 1; j < row.length; ++j) {
+                final int substitute = row[j - 1] + (s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 1);
+                next[j] = Math.min(substitute, Math.min(row[j] + 1, next[j - 1] + 1));
+            }
+            row = next;
+        }
+        return row[s2.length()];
+    }
+
+    private static String randomWord(final Random random) {
+        final char[] chars = new char[3 + random.nextInt(8)];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+}
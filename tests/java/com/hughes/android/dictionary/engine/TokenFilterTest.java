@@ -0,0 +1,113 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.hughes.android.dictionary.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TokenFilterTest extends TestCase {
+
+    private File file;
+    private MappedDictionaryFile mappedFile;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
+        if (file != null) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testNoFalseNegatives() throws IOException {
+        final List<String> tokens = randomTokens(new Random(0), 5000);
+        tokens.add("a");
+        tokens.add("café");
+        final TokenFilter filter = writeAndRead(tokens);
+        for (final String token : tokens) {
+            assertTrue(token, filter.mightContainToken(token));
+            for (int length = 0; length <= token.length(); ++length) {
+                assertTrue(token, filter.mightContainPrefix(token.substring(0, length)));
+            }
+        }
+        // Canonically equivalent to a token, so the same key.
+        assertTrue(filter.mightContainToken("café"));
+    }
+
+    public void testFalsePositiveRate() throws IOException {
+        final Random random = new Random(1);
+        final TokenFilter filter = writeAndRead(randomTokens(random, 5000));
+        int falsePositives = 0;
+        for (final String token : randomTokens(random, 10000)) {
+            // Digits are never in the written tokens.
+            if (filter.mightContainToken(token + "0")) {
+                ++falsePositives;
+            }
+        }
+        // About 1% is expected.
+        assertTrue("falsePositives=" + falsePositives, falsePositives < 300);
+        assertFalse(filter.mightContainPrefix("0"));
+    }
+
+    public void testEmpty() throws IOException {
+        final TokenFilter filter = writeAndRead(new ArrayList<String>());
+        assertTrue(filter.mightContainPrefix(""));
+        assertFalse(filter.mightContainToken("a"));
+    }
+
+    /**
+     * Writes an empty dictionary followed by a filter of tokens, and reads
+     * the filter back through a mapping of the file, as Index does.
+     */
+    private TokenFilter writeAndRead(final List<String> tokens) throws IOException {
+        file = File.createTempFile("TokenFilterTest", ".quickdic");
+        final long filterStart;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            new Dictionary("TokenFilterTest").write(raf);
+            filterStart = raf.getFilePointer();
+            TokenFilter.write(raf, tokens);
+        } finally {
+            raf.close();
+        }
+        mappedFile = new MappedDictionaryFile(file);
+        final Dictionary dict = new Dictionary(mappedFile);
+        final MappedDictionaryFile.Cursor in = mappedFile.cursor(filterStart);
+        final TokenFilter filter = TokenFilter.read(dict, in);
+        assertEquals(file.length(), dict.getFilePointer(in));
+        return filter;
+    }
+
+    private static List<String> randomTokens(final Random random, final int count) {
+        final List<String> result = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            final char[] chars = new char[1 + random.nextInt(10)];
+            for (int j = 0; j < chars.length; ++j) {
+                chars[j] = (char) ('a' + random.nextInt(26));
+            }
+            result.add(new String(chars));
+        }
+        return result;
+    }
+
+}